@@ -6,14 +6,19 @@ import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.ParentCommand;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
 
 @Command(name = "baas", mixinStandardHelpOptions = true, version = "1.0",
         description = "BaaS (Backend-as-a-Service) Command Line Interface",
         subcommands = {
                 BaasCLI.InsertCommand.class,
                 BaasCLI.GetCommand.class,
-                BaasCLI.QueryCommand.class
+                BaasCLI.QueryCommand.class,
+                BaasCLI.IndexCommand.class,
+                BaasCLI.AggregateCommand.class
         })
 public class BaasCLI implements Runnable {
 
@@ -82,7 +87,7 @@ public class BaasCLI implements Runnable {
         @Option(names = {"--all"}, description = "Get all documents in the collection")
         private boolean getAll;
 
-        @Option(names = {"--where"}, description = "Filter condition (e.g., 'name=Alice', 'age>=25')")
+        @Option(names = {"--where"}, description = "Filter condition (e.g., 'name=Alice', 'age>=25 AND city IN (Paris, Rome)')")
         private String whereCondition;
 
         @Option(names = {"--limit"}, description = "Limit number of results (default: no limit)")
@@ -94,15 +99,29 @@ public class BaasCLI implements Runnable {
         @Option(names = {"--sort"}, description = "Sort by field (e.g., 'name ASC', 'age DESC')")
         private String sort;
 
+        @Option(names = {"--explain"}, description = "Show the query plan instead of the results")
+        private boolean explain;
+
+        @Option(names = {"--stream"}, description = "Print documents as they arrive instead of after the whole result")
+        private boolean stream;
+
+        @Option(names = {"--cursor"}, description = "Continue from the cursor printed with the previous page")
+        private String cursor;
+
         @Override
         public Integer call() {
             try (BaasGrpcClient client = new BaasGrpcClient(parent.host, parent.port)) {
                 String result;
 
                 // Handle different query modes
-                if (getAll || whereCondition != null || limit != null || fields != null || sort != null) {
+                if (explain) {
+                    System.out.println(client.explainQuery(collection, whereCondition, limit, sort, getAll));
+                } else if (stream) {
+                    System.out.println(client.streamQuery(collection, getAll ? null : whereCondition, limit, fields, sort,
+                            System.out::println));
+                } else if (getAll || whereCondition != null || limit != null || fields != null || sort != null || cursor != null) {
                     // Use enhanced query functionality
-                    result = client.queryDocuments(collection, whereCondition, limit, fields, sort, getAll);
+                    result = client.queryDocuments(collection, whereCondition, limit, fields, sort, getAll, cursor);
 
                     if (result.isEmpty()) {
                         System.out.println("No documents found");
@@ -166,4 +185,73 @@ public class BaasCLI implements Runnable {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Command(name = "index", description = "Create an index on one or more fields")
+    static class IndexCommand implements Callable<Integer> {
+
+        @ParentCommand
+        private BaasCLI parent;
+
+        @Parameters(index = "0", description = "Collection name")
+        private String collection;
+
+        @Parameters(index = "1", description = "Comma-separated fields, leftmost first (e.g., 'tenant,status,createdAt')")
+        private String fields;
+
+        @Override
+        public Integer call() {
+            try (BaasGrpcClient client = new BaasGrpcClient(parent.host, parent.port)) {
+                List<String> fieldList = Arrays.stream(fields.split(","))
+                        .map(String::trim)
+                        .collect(Collectors.toList());
+                System.out.println(client.createIndex(collection, fieldList));
+                return 0;
+            } catch (Exception e) {
+                System.err.println("Error: " + e.getMessage());
+                return 1;
+            }
+        }
+    }
+
+    @Command(name = "aggregate", description = "Count or summarize documents on the server, optionally per group")
+    static class AggregateCommand implements Callable<Integer> {
+
+        @ParentCommand
+        private BaasCLI parent;
+
+        @Parameters(index = "0", description = "Collection name")
+        private String collection;
+
+        @Parameters(index = "1", arity = "0..1", defaultValue = "count",
+                description = "Comma-separated aggregates (default: ${DEFAULT-VALUE}; e.g., 'count,avg(price),max(createdAt)')")
+        private String aggregates;
+
+        @Option(names = {"--where"}, description = "Filter condition, as for get --where")
+        private String whereCondition;
+
+        @Option(names = {"--group-by"}, description = "Comma-separated fields to group by (e.g., 'city')")
+        private String groupBy;
+
+        @Option(names = {"--explain"}, description = "Show how the aggregates would be computed")
+        private boolean explain;
+
+        @Override
+        public Integer call() {
+            try (BaasGrpcClient client = new BaasGrpcClient(parent.host, parent.port)) {
+                System.out.println(client.aggregate(collection, whereCondition, split(groupBy), split(aggregates), explain));
+                return 0;
+            } catch (Exception e) {
+                System.err.println("Error: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        private static List<String> split(String list) {
+            if (list == null) return List.of();
+            return Arrays.stream(list.split(","))
+                    .map(String::trim)
+                    .filter(item -> !item.isEmpty())
+                    .collect(Collectors.toList());
+        }
+    }
+}
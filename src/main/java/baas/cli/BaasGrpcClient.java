@@ -6,8 +6,10 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class BaasGrpcClient implements AutoCloseable {
     private final ManagedChannel channel;
@@ -95,9 +97,32 @@ public class BaasGrpcClient implements AutoCloseable {
         }
     }
 
+    public String createIndex(String collection, List<String> fields) {
+        try {
+            CreateIndexResponse response = blockingStub.createIndex(
+                    CreateIndexRequest.newBuilder()
+                            .setCollection(collection)
+                            .addAllFields(fields)
+                            .build());
+
+            if (!response.getSuccess()) {
+                return "Create index failed: " + response.getError();
+            }
+            return "Index created on " + collection + " (" + String.join(", ", fields) + ")";
+        } catch (StatusRuntimeException e) {
+            return "RPC failed: " + e.getStatus();
+        }
+    }
+
     // Enhanced query method for new CLI functionality
     public String queryDocuments(String collection, String whereCondition,
                                  Integer limit, String fields, String sort, boolean getAll) {
+        return queryDocuments(collection, whereCondition, limit, fields, sort, getAll, null);
+    }
+
+    // Continues a query from the next_cursor printed with its previous page
+    public String queryDocuments(String collection, String whereCondition,
+                                 Integer limit, String fields, String sort, boolean getAll, String cursor) {
         try {
             // Build enhanced query request
             EnhancedQueryRequest.Builder requestBuilder = EnhancedQueryRequest.newBuilder()
@@ -124,6 +149,10 @@ public class BaasGrpcClient implements AutoCloseable {
                 requestBuilder.setSort(sort);
             }
 
+            if (cursor != null && !cursor.trim().isEmpty()) {
+                requestBuilder.setCursor(cursor.trim());
+            }
+
             // Make the enhanced query call
             EnhancedQueryResponse response = blockingStub.enhancedQuery(requestBuilder.build());
 
@@ -158,6 +187,9 @@ public class BaasGrpcClient implements AutoCloseable {
                     result.append("\n\n");
                 }
             }
+            if (!response.getNextCursor().isEmpty()) {
+                result.append("\n\nNext page: --cursor ").append(response.getNextCursor());
+            }
 
             return result.toString();
 
@@ -170,6 +202,101 @@ public class BaasGrpcClient implements AutoCloseable {
         }
     }
 
+    // Shows how the server would run an enhanced query, without running it
+    public String explainQuery(String collection, String whereCondition,
+                               Integer limit, String sort, boolean getAll) {
+        try {
+            EnhancedQueryRequest.Builder requestBuilder = EnhancedQueryRequest.newBuilder()
+                    .setCollection(collection)
+                    .setGetAll(getAll)
+                    .setExplain(true);
+            if (whereCondition != null && !whereCondition.trim().isEmpty()) {
+                requestBuilder.setWhereCondition(whereCondition);
+            }
+            if (limit != null && limit > 0) {
+                requestBuilder.setLimit(limit);
+            }
+            if (sort != null && !sort.trim().isEmpty()) {
+                requestBuilder.setSort(sort);
+            }
+
+            EnhancedQueryResponse response = blockingStub.enhancedQuery(requestBuilder.build());
+            if (!response.getSuccess()) {
+                return "Explain failed: " + response.getError();
+            }
+            return response.getPlan();
+        } catch (StatusRuntimeException e) {
+            return "RPC failed: " + e.getStatus();
+        }
+    }
+
+    /**
+     * Runs a query as a stream, passing each document to {@code onDocument} as its batch
+     * arrives rather than waiting for the whole result. The blocking iterator only asks the
+     * server for more once the previous batches have been consumed.
+     */
+    public String streamQuery(String collection, String whereCondition, Integer limit,
+                              String fields, String sort, Consumer<String> onDocument) {
+        try {
+            StreamQueryRequest.Builder requestBuilder = StreamQueryRequest.newBuilder()
+                    .setCollection(collection);
+            if (whereCondition != null && !whereCondition.trim().isEmpty()) {
+                requestBuilder.setWhereCondition(whereCondition);
+            }
+            if (limit != null && limit > 0) {
+                requestBuilder.setLimit(limit);
+            }
+            if (fields != null && !fields.trim().isEmpty()) {
+                requestBuilder.setFields(fields);
+            }
+            if (sort != null && !sort.trim().isEmpty()) {
+                requestBuilder.setSort(sort);
+            }
+
+            int count = 0;
+            Iterator<QueryBatch> batches = blockingStub.streamQuery(requestBuilder.build());
+            while (batches.hasNext()) {
+                QueryBatch batch = batches.next();
+                if (!batch.getSuccess()) {
+                    return "Stream query failed: " + batch.getError();
+                }
+                for (String doc : batch.getDocumentsList()) {
+                    onDocument.accept(doc);
+                    count++;
+                }
+            }
+            return count == 0 ? "No documents found" : "Streamed " + count + " document(s)";
+        } catch (StatusRuntimeException e) {
+            return "RPC failed: " + e.getStatus();
+        }
+    }
+
+    // Aggregates computed on the server, one JSON object per group; or how they would be computed
+    public String aggregate(String collection, String whereCondition, List<String> groupBy,
+                            List<String> aggregates, boolean explain) {
+        try {
+            AggregateRequest.Builder requestBuilder = AggregateRequest.newBuilder()
+                    .setCollection(collection)
+                    .addAllGroupBy(groupBy)
+                    .addAllAggregates(aggregates)
+                    .setExplain(explain);
+            if (whereCondition != null && !whereCondition.trim().isEmpty()) {
+                requestBuilder.setWhereCondition(whereCondition);
+            }
+
+            AggregateResponse response = blockingStub.aggregate(requestBuilder.build());
+            if (!response.getSuccess()) {
+                return "Aggregate failed: " + response.getError();
+            }
+            if (explain) {
+                return response.getPlan();
+            }
+            return response.getGroupsCount() == 0 ? "No documents found" : String.join("\n", response.getGroupsList());
+        } catch (StatusRuntimeException e) {
+            return "RPC failed: " + e.getStatus();
+        }
+    }
+
     // Fallback method for backward compatibility
     private String fallbackQuery(String collection, String whereCondition, Integer limit, boolean getAll) {
         try {
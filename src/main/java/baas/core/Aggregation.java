@@ -0,0 +1,328 @@
+package baas.core;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregates computed over the documents of a query, either over all of them at once or per
+ * group of documents sharing the values of the group-by fields. Documents are folded into a
+ * {@link Partial} one at a time, which holds one set of accumulators per group and never the
+ * documents themselves; the parts of a parallel scan fold into partials of their own, which
+ * are merged afterwards.
+ *
+ * <p>Aggregates are written {@code count}, {@code count(field)}, {@code sum(field)},
+ * {@code avg(field)}, {@code min(field)} and {@code max(field)}. As in SQL, all but a plain
+ * count skip documents where the field is missing or null, sum and avg also skip values that
+ * are not numbers, and an aggregate over no values is null. Sums of whole numbers and decimals
+ * are exact, whatever order the documents come in: a sum stays a long while it fits and
+ * becomes a decimal once a decimal is added or a long would overflow, and the average of
+ * decimals is a decimal to 34 digits. Doubles have no exact sum and make the result a double.
+ * Min and max, and the grouping itself, follow {@link ValueComparator}, so {@code 25},
+ * {@code 25.0} and {@code 25.00} fall into one group; a missing group field groups with null.
+ */
+public final class Aggregation {
+    enum Function { COUNT, SUM, AVG, MIN, MAX }
+
+    private static final Pattern AGGREGATE = Pattern.compile(
+            "(?i)(count|sum|avg|min|max)\\s*(?:\\(\\s*([^()]*?)\\s*\\))?");
+
+    static final class Aggregate {
+        final Function function;
+        final String field;     // null for a plain count
+        final String name;      // how results name it, e.g. "avg(price)"
+
+        Aggregate(Function function, String field) {
+            this.function = function;
+            this.field = field;
+            this.name = function.name().toLowerCase(Locale.ROOT) + (field != null ? "(" + field + ")" : "");
+        }
+
+        boolean isPlainCount() {
+            return function == Function.COUNT && field == null;
+        }
+    }
+
+    final List<String> groupBy;
+    final List<Aggregate> aggregates;
+
+    private Aggregation(List<String> groupBy, List<Aggregate> aggregates) {
+        this.groupBy = groupBy;
+        this.aggregates = aggregates;
+    }
+
+    /**
+     * @param groupBy    fields to group by, possibly dotted paths; none for a single result
+     * @param aggregates aggregates as described above; a plain count when there are none
+     * @throws IllegalArgumentException if an aggregate is not one of the supported forms
+     */
+    public static Aggregation parse(List<String> groupBy, List<String> aggregates) {
+        List<String> fields = new ArrayList<>();
+        for (String field : groupBy) {
+            String trimmed = field.trim();
+            if (!trimmed.isEmpty() && !fields.contains(trimmed)) fields.add(trimmed);
+        }
+
+        Map<String, Aggregate> parsed = new LinkedHashMap<>();
+        for (String text : aggregates) {
+            if (text.trim().isEmpty()) continue;
+            Matcher matcher = AGGREGATE.matcher(text.trim());
+            if (!matcher.matches()) throw new IllegalArgumentException("Unknown aggregate: " + text.trim());
+            Function function = Function.valueOf(matcher.group(1).toUpperCase(Locale.ROOT));
+            String field = matcher.group(2);
+            if (field != null && (field.isEmpty() || field.equals("*"))) field = null;
+            if (field == null && function != Function.COUNT) {
+                throw new IllegalArgumentException(function.name().toLowerCase(Locale.ROOT) + " needs a field: " + text.trim());
+            }
+            Aggregate aggregate = new Aggregate(function, field);
+            parsed.putIfAbsent(aggregate.name, aggregate);
+        }
+        if (parsed.isEmpty()) {
+            Aggregate count = new Aggregate(Function.COUNT, null);
+            parsed.put(count.name, count);
+        }
+        return new Aggregation(fields, new ArrayList<>(parsed.values()));
+    }
+
+    Partial newPartial() {
+        return new Partial();
+    }
+
+    /**
+     * Group value a document's field falls under: whole numbers of any type become longs where
+     * they fit and other numbers decimals without trailing zeros, so that values equal in
+     * ValueComparator order share a group.
+     */
+    static Object groupValue(Object value) {
+        if (value == FieldPath.ABSENT) return null;
+        if (!(value instanceof Number) || value instanceof Long) return value;
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        BigDecimal decimal;
+        if (value instanceof BigDecimal) {
+            decimal = (BigDecimal) value;
+        } else if (value instanceof BigInteger) {
+            decimal = new BigDecimal((BigInteger) value);
+        } else {
+            double number = ((Number) value).doubleValue();
+            if (!Double.isFinite(number)) return number;
+            if (number == Math.rint(number) && Math.abs(number) < 0x1p63) return (long) number;
+            decimal = BigDecimal.valueOf(number);
+        }
+        decimal = decimal.stripTrailingZeros();
+        if (decimal.scale() <= 0 && decimal.precision() - decimal.scale() <= 19) {
+            try {
+                return decimal.longValueExact();
+            } catch (ArithmeticException e) {
+                // A whole number beyond a long stays a decimal
+            }
+        }
+        return decimal;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Aggregate aggregate : aggregates) {
+            if (text.length() > 0) text.append(", ");
+            text.append(aggregate.name);
+        }
+        if (!groupBy.isEmpty()) text.append(" grouped by ").append(String.join(", ", groupBy));
+        return text.toString();
+    }
+
+    /**
+     * Running state of one aggregate within one group.
+     */
+    static final class Accumulator {
+        long count;                     // values seen, or documents for a plain count
+        private long sum;               // whole values, while their sum fits
+        private BigDecimal exactSum;    // decimals, big integers and whole values past a long
+        private double floatingSum;     // doubles and floats, which only add approximately
+        private boolean floating;
+        private Object min;
+        private Object max;
+
+        // Adds the value of the aggregate's field in one document, ABSENT if it has none
+        void add(Aggregate aggregate, Object value) {
+            if (aggregate.isPlainCount()) {
+                count++;
+                return;
+            }
+            if (value == FieldPath.ABSENT || value == null) return;
+            switch (aggregate.function) {
+                case COUNT:
+                    count++;
+                    break;
+                case SUM:
+                case AVG:
+                    if (!(value instanceof Number)) return;
+                    count++;
+                    Number number = (Number) value;
+                    if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+                        addWhole(number.longValue());
+                    } else if (number instanceof BigDecimal) {
+                        addExact((BigDecimal) number);
+                    } else if (number instanceof BigInteger) {
+                        addExact(new BigDecimal((BigInteger) number));
+                    } else {
+                        floating = true;
+                        floatingSum += number.doubleValue();
+                    }
+                    break;
+                case MIN:
+                case MAX:
+                    count++;
+                    if (min == null || ValueComparator.INSTANCE.compare(value, min) < 0) min = value;
+                    if (max == null || ValueComparator.INSTANCE.compare(value, max) > 0) max = value;
+                    break;
+            }
+        }
+
+        void addCount(long documents) {
+            count += documents;
+        }
+
+        // Adds the state of the same aggregate in the same group from another partial
+        void merge(Accumulator other) {
+            count += other.count;
+            addWhole(other.sum);
+            if (other.exactSum != null) addExact(other.exactSum);
+            if (other.floating) {
+                floating = true;
+                floatingSum += other.floatingSum;
+            }
+            if (other.min != null && (min == null || ValueComparator.INSTANCE.compare(other.min, min) < 0)) min = other.min;
+            if (other.max != null && (max == null || ValueComparator.INSTANCE.compare(other.max, max) > 0)) max = other.max;
+        }
+
+        private void addWhole(long value) {
+            long result = sum + value;
+            if (((sum ^ result) & (value ^ result)) < 0) {
+                // Overflow: carry this value in the decimal part instead
+                addExact(BigDecimal.valueOf(value));
+            } else {
+                sum = result;
+            }
+        }
+
+        private void addExact(BigDecimal value) {
+            exactSum = exactSum == null ? value : exactSum.add(value);
+        }
+
+        Object result(Aggregate aggregate) {
+            switch (aggregate.function) {
+                case COUNT: return count;
+                case SUM: return count == 0 ? null : total();
+                case AVG:
+                    if (count == 0) return null;
+                    Object total = total();
+                    if (total instanceof BigDecimal) return ((BigDecimal) total).divide(BigDecimal.valueOf(count), MathContext.DECIMAL128);
+                    return ((Number) total).doubleValue() / count;
+                case MIN: return min;
+                default: return max;
+            }
+        }
+
+        // The sum as a long, a decimal when it does not fit one or holds decimals, or a double
+        private Object total() {
+            BigDecimal exact = exactSum != null ? exactSum.add(BigDecimal.valueOf(sum)) : null;
+            if (floating) return (exact != null ? exact.doubleValue() : sum) + floatingSum;
+            return exact != null ? exact : (Object) sum;
+        }
+    }
+
+    /**
+     * Accumulators per group for the documents added so far. Not thread-safe: each part of a
+     * scan folds into a partial of its own.
+     */
+    final class Partial {
+        private final Map<List<Object>, Accumulator[]> groups = new HashMap<>();
+
+        void add(Map<String, Object> document) {
+            Accumulator[] accumulators = group(keyOf(document));
+            for (int i = 0; i < accumulators.length; i++) {
+                Aggregate aggregate = aggregates.get(i);
+                accumulators[i].add(aggregate, aggregate.field != null ? FieldPath.resolve(document, aggregate.field) : null);
+            }
+        }
+
+        /**
+         * Accumulators of the group with the given group values, created empty if needed.
+         */
+        Accumulator[] group(List<Object> key) {
+            Accumulator[] accumulators = groups.get(key);
+            if (accumulators == null) {
+                accumulators = new Accumulator[aggregates.size()];
+                for (int i = 0; i < accumulators.length; i++) {
+                    accumulators[i] = new Accumulator();
+                }
+                groups.put(key, accumulators);
+            }
+            return accumulators;
+        }
+
+        private List<Object> keyOf(Map<String, Object> document) {
+            switch (groupBy.size()) {
+                case 0: return Collections.emptyList();
+                case 1: return Collections.singletonList(groupValue(FieldPath.resolve(document, groupBy.get(0))));
+                default:
+                    List<Object> key = new ArrayList<>(groupBy.size());
+                    for (String field : groupBy) {
+                        key.add(groupValue(FieldPath.resolve(document, field)));
+                    }
+                    return key;
+            }
+        }
+
+        Partial merge(Partial other) {
+            for (Map.Entry<List<Object>, Accumulator[]> entry : other.groups.entrySet()) {
+                Accumulator[] accumulators = groups.get(entry.getKey());
+                if (accumulators == null) {
+                    groups.put(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                for (int i = 0; i < accumulators.length; i++) {
+                    accumulators[i].merge(entry.getValue()[i]);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * One map per group in order of its group values, holding the group-by fields and then
+         * each aggregate under its name. Without group-by fields there is always exactly one,
+         * even when no documents were added.
+         */
+        List<Map<String, Object>> results() {
+            if (groupBy.isEmpty()) group(Collections.emptyList());
+            List<List<Object>> keys = new ArrayList<>(groups.keySet());
+            keys.sort(Aggregation::compareKeys);
+            List<Map<String, Object>> results = new ArrayList<>(keys.size());
+            for (List<Object> key : keys) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                for (int i = 0; i < groupBy.size(); i++) {
+                    row.put(groupBy.get(i), key.get(i));
+                }
+                Accumulator[] accumulators = groups.get(key);
+                for (int i = 0; i < accumulators.length; i++) {
+                    row.put(aggregates.get(i).name, accumulators[i].result(aggregates.get(i)));
+                }
+                results.add(row);
+            }
+            return results;
+        }
+    }
+
+    private static int compareKeys(List<Object> a, List<Object> b) {
+        for (int i = 0; i < a.size(); i++) {
+            int cmp = ValueComparator.INSTANCE.compare(a.get(i), b.get(i));
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,51 @@
+package baas.core;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Documents and secondary indexes of a single collection, guarded by their own lock
+ * so that work on one collection never blocks another.
+ */
+class CollectionData {
+    final DocumentStore documents;
+    final Map<String, SecondaryIndex> indexes = new HashMap<>();
+    final Map<List<String>, CompoundIndex> compoundIndexes = new HashMap<>();
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+    volatile Durability durability = Durability.GROUP;
+
+    // TTL index: expiry bucket (expiry millis / bucket size) -> ids expiring in that bucket
+    final NavigableMap<Long, Set<String>> expiryBuckets = new TreeMap<>();
+
+    // Ids that readers found expired; removed by the next writer holding the write lock
+    final Set<String> pendingExpired = ConcurrentHashMap.newKeySet();
+
+    CollectionData(DocumentStore documents) {
+        this.documents = documents;
+    }
+
+    // Marks a document that did not exist when the running snapshot started
+    static final Map<String, Object> ABSENT = Collections.unmodifiableMap(new HashMap<>());
+
+    // Ids inserted, replaced or removed since the last snapshot started; guarded by lock
+    Set<String> changedIds = new HashSet<>();
+
+    // Copy-on-write state of a running snapshot, guarded by lock: the version each
+    // not-yet-copied document had when the snapshot started, and the last id copied so far
+    Map<String, Map<String, Object>> snapshotPreImages;
+    String snapshotCursor;
+
+    /**
+     * Records that a document was replaced or removed: marks it for the next incremental
+     * snapshot and keeps its snapshot-time version unless the running snapshot has already
+     * copied it. Caller must hold the write lock.
+     */
+    void recordChange(String id, Map<String, Object> previous) {
+        changedIds.add(id);
+        if (snapshotPreImages == null) return;
+        if (snapshotCursor != null && id.compareTo(snapshotCursor) <= 0) return;
+        snapshotPreImages.putIfAbsent(id, previous != null ? previous : ABSENT);
+    }
+}
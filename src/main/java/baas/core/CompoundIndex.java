@@ -0,0 +1,103 @@
+package baas.core;
+
+import java.util.*;
+
+/**
+ * Ordered index over several fields of a collection, e.g. {@code (tenant, status, createdAt)}.
+ * Keys are the documents' values for those fields in order, compared field by field with
+ * {@link ValueComparator}, so the index answers equality on any leftmost prefix of its fields,
+ * optionally followed by a range on the next field. A missing field is indexed as null;
+ * callers re-check their conditions on the documents found. Guarded by the collection's lock.
+ */
+final class CompoundIndex {
+    // Key elements that sort below and above every value, used to bound prefix scans
+    private static final Object LOW = new Object();
+    private static final Object HIGH = new Object();
+
+    private final List<String> fields;
+    private final NavigableMap<Object[], NavigableSet<String>> postings = new TreeMap<>(CompoundIndex::compareKeys);
+
+    CompoundIndex(List<String> fields) {
+        this.fields = List.copyOf(fields);
+    }
+
+    List<String> fields() {
+        return fields;
+    }
+
+    void add(String id, Map<String, Object> document) {
+        postings.computeIfAbsent(keyOf(document), k -> new TreeSet<>()).add(id);
+    }
+
+    void remove(String id, Map<String, Object> document) {
+        Object[] key = keyOf(document);
+        Set<String> ids = postings.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                postings.remove(key);
+            }
+        }
+    }
+
+    void clear() {
+        postings.clear();
+    }
+
+    /**
+     * Id sets of the documents whose first {@code prefix.size()} fields equal the prefix and,
+     * if {@code range} is given, whose next field lies in it; in key order.
+     */
+    Collection<NavigableSet<String>> probe(List<Object> prefix, Condition range) {
+        int length = prefix.size();
+        if (length > fields.size() || (range != null && length == fields.size())) {
+            throw new IllegalArgumentException("Probe does not fit index " + fields);
+        }
+        Object[] from = Arrays.copyOf(prefix.toArray(), fields.size());
+        Object[] to = Arrays.copyOf(prefix.toArray(), fields.size());
+        int rest = length;
+
+        if (range != null) {
+            if (range.lower != null && range.upper != null && !ValueComparator.comparable(range.lower, range.upper)) {
+                return Collections.emptyList();
+            }
+            from[length] = range.lower != null ? range.lower : ValueComparator.startOfType(range.upper);
+            to[length] = range.upper != null ? range.upper : ValueComparator.endOfType(range.lower);
+            rest = length + 1;
+            // An exclusive bound skips every key that carries the bound value itself
+            Arrays.fill(from, rest, from.length, range.lower == null || range.lowerInclusive ? LOW : HIGH);
+            Arrays.fill(to, rest, to.length, range.upper == null || range.upperInclusive ? HIGH : LOW);
+        } else {
+            Arrays.fill(from, rest, from.length, LOW);
+            Arrays.fill(to, rest, to.length, HIGH);
+        }
+
+        if (compareKeys(from, to) > 0) return Collections.emptyList();
+        // With the range on the last field there is no padding to carry its inclusiveness
+        boolean lastField = range != null && rest == from.length;
+        return postings.subMap(from, !lastField || range.lower == null || range.lowerInclusive,
+                to, !lastField || range.upper == null || range.upperInclusive).values();
+    }
+
+    private Object[] keyOf(Map<String, Object> document) {
+        Object[] key = new Object[fields.size()];
+        for (int i = 0; i < key.length; i++) {
+            Object value = FieldPath.resolve(document, fields.get(i));
+            key[i] = value != FieldPath.ABSENT ? value : null;
+        }
+        return key;
+    }
+
+    private static int compareKeys(Object[] a, Object[] b) {
+        for (int i = 0; i < a.length; i++) {
+            Object x = a[i];
+            Object y = b[i];
+            if (x == y) continue;
+            if (x == LOW || y == HIGH) return -1;
+            if (x == HIGH || y == LOW) return 1;
+            int cmp = ValueComparator.INSTANCE.compare(x, y);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+}
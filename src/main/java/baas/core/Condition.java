@@ -0,0 +1,223 @@
+package baas.core;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * One predicate on a document field: equality or inequality with a value, membership in a
+ * set of values, or a range between two bounds, compared with {@link ValueComparator}. The
+ * field may name a nested field (see {@link FieldPath}); a document without it never matches.
+ * <p>The kind of the literal is worked out once when the condition is built, so matching a
+ * long, double, decimal or string field against a literal of the same kind compares them
+ * directly; other combinations go through {@link ValueComparator}.
+ */
+public final class Condition {
+    enum Operator { EQUAL, NOT_EQUAL, IN, NOT_IN, RANGE }
+
+    // Literal kinds with a direct comparison
+    private static final byte GENERIC = 0;
+    private static final byte INTEGRAL = 1;
+    private static final byte FLOATING = 2;
+    private static final byte STRING = 3;
+    private static final byte DECIMAL = 4;
+
+    final String field;
+    final Operator operator;
+    final Object value;
+    final NavigableSet<Object> values;     // IN and NOT_IN, in ValueComparator order
+    final Object lower;
+    final boolean lowerInclusive;
+    final Object upper;
+    final boolean upperInclusive;
+
+    // Kind shared by the literal or by every bound present, with their primitive forms
+    private final byte kind;
+    private final long lowerLong;
+    private final long upperLong;
+    private final double lowerDouble;
+    private final double upperDouble;
+
+    private Condition(String field, Operator operator, Object value, NavigableSet<Object> values,
+                      Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        this.field = field;
+        this.operator = operator;
+        this.value = value;
+        this.values = values;
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+
+        Object low = operator == Operator.RANGE ? lower : value;
+        Object high = operator == Operator.RANGE ? upper : value;
+        byte kind = values != null ? GENERIC : kindOf(low != null ? low : high);
+        if (low != null && high != null && kindOf(high) != kind) {
+            kind = GENERIC;
+        }
+        this.kind = kind;
+        this.lowerLong = kind == INTEGRAL && low != null ? ((Number) low).longValue() : 0;
+        this.upperLong = kind == INTEGRAL && high != null ? ((Number) high).longValue() : 0;
+        this.lowerDouble = kind == FLOATING && low != null ? ((Number) low).doubleValue() : 0;
+        this.upperDouble = kind == FLOATING && high != null ? ((Number) high).doubleValue() : 0;
+    }
+
+    public static Condition equalTo(String field, Object value) {
+        return new Condition(field, Operator.EQUAL, value, null, null, false, null, false);
+    }
+
+    // Matches documents that have the field with any other value; no index can answer it
+    public static Condition notEqualTo(String field, Object value) {
+        return new Condition(field, Operator.NOT_EQUAL, value, null, null, false, null, false);
+    }
+
+    public static Condition in(String field, Collection<?> values) {
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("IN on '" + field + "' needs at least one value");
+        }
+        return new Condition(field, Operator.IN, null, toSet(values), null, false, null, false);
+    }
+
+    // Matches documents that have the field with a value outside the set
+    public static Condition notIn(String field, Collection<?> values) {
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("NOT IN on '" + field + "' needs at least one value");
+        }
+        return new Condition(field, Operator.NOT_IN, null, toSet(values), null, false, null, false);
+    }
+
+    /**
+     * @param lower lower bound, or null for none; at least one bound is required
+     * @param upper upper bound, or null for none
+     */
+    public static Condition range(String field, Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        if (lower == null && upper == null) {
+            throw new IllegalArgumentException("Range on '" + field + "' needs at least one bound");
+        }
+        return new Condition(field, Operator.RANGE, null, null, lower, lowerInclusive, upper, upperInclusive);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    boolean matches(Map<String, Object> document) {
+        Object actual = FieldPath.resolve(document, field);
+        if (actual == FieldPath.ABSENT) return false;
+        switch (operator) {
+            case EQUAL: return equal(actual);
+            case NOT_EQUAL: return !equal(actual);
+            case IN: return values.contains(actual);
+            case NOT_IN: return !values.contains(actual);
+            default: return inRange(actual);
+        }
+    }
+
+    boolean isEquality() {
+        return operator == Operator.EQUAL;
+    }
+
+    boolean isIn() {
+        return operator == Operator.IN;
+    }
+
+    boolean isRange() {
+        return operator == Operator.RANGE;
+    }
+
+    private boolean equal(Object actual) {
+        switch (kind) {
+            case INTEGRAL:
+                if (actual instanceof Long || actual instanceof Integer) return ((Number) actual).longValue() == lowerLong;
+                break;
+            case FLOATING:
+                if (actual instanceof Double) return Double.compare((Double) actual, lowerDouble) == 0;
+                break;
+            case STRING:
+                if (actual instanceof String) return actual.equals(value);
+                break;
+            case DECIMAL:
+                if (actual instanceof BigDecimal) return ((BigDecimal) actual).compareTo((BigDecimal) value) == 0;
+                break;
+            default:
+                break;
+        }
+        return ValueComparator.comparable(actual, value) && ValueComparator.INSTANCE.compare(actual, value) == 0;
+    }
+
+    private boolean inRange(Object actual) {
+        switch (kind) {
+            case INTEGRAL:
+                if (actual instanceof Long || actual instanceof Integer) {
+                    long v = ((Number) actual).longValue();
+                    return (lower == null || (lowerInclusive ? v >= lowerLong : v > lowerLong))
+                            && (upper == null || (upperInclusive ? v <= upperLong : v < upperLong));
+                }
+                break;
+            case FLOATING:
+                if (actual instanceof Double) {
+                    double v = (Double) actual;
+                    int low = lower == null ? 1 : Double.compare(v, lowerDouble);
+                    int high = upper == null ? -1 : Double.compare(v, upperDouble);
+                    return (lowerInclusive ? low >= 0 : low > 0) && (upperInclusive ? high <= 0 : high < 0);
+                }
+                break;
+            case STRING:
+                if (actual instanceof String) {
+                    String v = (String) actual;
+                    int low = lower == null ? 1 : v.compareTo((String) lower);
+                    int high = upper == null ? -1 : v.compareTo((String) upper);
+                    return (lowerInclusive ? low >= 0 : low > 0) && (upperInclusive ? high <= 0 : high < 0);
+                }
+                break;
+            case DECIMAL:
+                if (actual instanceof BigDecimal) {
+                    BigDecimal v = (BigDecimal) actual;
+                    int low = lower == null ? 1 : v.compareTo((BigDecimal) lower);
+                    int high = upper == null ? -1 : v.compareTo((BigDecimal) upper);
+                    return (lowerInclusive ? low >= 0 : low > 0) && (upperInclusive ? high <= 0 : high < 0);
+                }
+                break;
+            default:
+                break;
+        }
+        return SecondaryIndex.inRange(actual, lower, lowerInclusive, upper, upperInclusive);
+    }
+
+    private static byte kindOf(Object literal) {
+        if (literal instanceof Long || literal instanceof Integer) return INTEGRAL;
+        if (literal instanceof Double) return FLOATING;
+        if (literal instanceof String) return STRING;
+        if (literal instanceof BigDecimal) return DECIMAL;
+        return GENERIC;
+    }
+
+    private static NavigableSet<Object> toSet(Collection<?> values) {
+        NavigableSet<Object> set = new TreeSet<>(ValueComparator.INSTANCE);
+        set.addAll(values);
+        return Collections.unmodifiableNavigableSet(set);
+    }
+
+    @Override
+    public String toString() {
+        switch (operator) {
+            case EQUAL: return field + " = " + literal(value);
+            case NOT_EQUAL: return field + " != " + literal(value);
+            case IN:
+            case NOT_IN:
+                return field + (operator == Operator.IN ? " IN " : " NOT IN ")
+                        + values.stream().map(Condition::literal).collect(Collectors.joining(", ", "(", ")"));
+            default:
+                StringBuilder text = new StringBuilder();
+                if (lower != null) text.append(literal(lower)).append(lowerInclusive ? " <= " : " < ");
+                text.append(field);
+                if (upper != null) text.append(upperInclusive ? " <= " : " < ").append(literal(upper));
+                return text.toString();
+        }
+    }
+
+    // Quotes strings so that "3" and 3 read differently in a plan
+    private static String literal(Object value) {
+        return value instanceof String ? "'" + value + "'" : String.valueOf(value);
+    }
+}
@@ -2,6 +2,8 @@ package baas.core;
 
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class ConfigLoader {
     private final Properties props = new Properties();
@@ -21,6 +23,15 @@ public class ConfigLoader {
         return props.getProperty(key);
     }
 
+    // Keys starting with the prefix, e.g. every "durability." setting, in sorted order
+    public Set<String> keysWithPrefix(String prefix) {
+        Set<String> keys = new TreeSet<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(prefix)) keys.add(key);
+        }
+        return keys;
+    }
+
     // NEW: Load cert/key from classpath
     public InputStream getResourceAsStream(String resourcePath) {
         InputStream input = getClass().getClassLoader().getResourceAsStream(resourcePath);
@@ -1,15 +1,29 @@
 package baas.core;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import com.minibaas.proto.DatabaseServiceGrpc;
 import com.minibaas.proto.DatabaseServiceProto.*;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImplBase {
+    // StreamQuery batches: documents per batch by default and at most, and bytes per message
+    private static final int DEFAULT_STREAM_BATCH = 256;
+    private static final int MAX_STREAM_BATCH = 10_000;
+    private static final long STREAM_BATCH_BYTES = 1 << 20;
+
+    // Compiled where conditions, by their text
+    private static final int WHERE_CACHE_SIZE = 256;
+
     private final StorageService storage;
+    private final WhereCompiler where = new WhereCompiler(WHERE_CACHE_SIZE);
 
     public DatabaseServiceImpl(StorageService storage) {
         this.storage = storage;
@@ -20,18 +34,22 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
         try {
             String documentJson = request.getDocument().trim();
             List<String> generatedIds = new ArrayList<>();
+            Durability durability = toDurability(request.getDurability());
 
             if (documentJson.startsWith("[")) {
                 // Bulk insert (array of documents)
                 org.json.JSONArray jsonArray = new org.json.JSONArray(documentJson);
+                Map<String, Map<String, Object>> documents = new LinkedHashMap<>();
                 for (int i = 0; i < jsonArray.length(); i++) {
                     org.json.JSONObject obj = jsonArray.getJSONObject(i);
                     Map<String, Object> doc = obj.toMap();
 
                     String docId = UUID.randomUUID().toString();
-                    storage.insertDocument(request.getCollection(), docId, doc, true);
+                    documents.put(docId, doc);
                     generatedIds.add(docId);
                 }
+                // One batch: the whole array shares its WAL fsyncs
+                storage.insertDocuments(request.getCollection(), documents, durability);
 
                 responseObserver.onNext(InsertResponse.newBuilder()
                         .setSuccess(true)
@@ -49,7 +67,7 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
                     generatedIds.add(id);
                 }
 
-                storage.insertDocument(request.getCollection(), id, document, true);
+                storage.insertDocument(request.getCollection(), id, document, durability);
 
                 InsertResponse.Builder builder = InsertResponse.newBuilder()
                         .setSuccess(true)
@@ -75,6 +93,25 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
     }
 
 
+    // Maps the wire enum to the storage one; null means "use the collection's setting"
+    private static Durability toDurability(com.minibaas.proto.DatabaseServiceProto.Durability durability) {
+        switch (durability) {
+            case DURABILITY_SYNC: return Durability.SYNC;
+            case DURABILITY_GROUP: return Durability.GROUP;
+            case DURABILITY_ASYNC: return Durability.ASYNC;
+            case DURABILITY_NONE: return Durability.NONE;
+            default: return null;
+        }
+    }
+
+    // Stored documents carry their serialized form, which is handed to gRPC without copying
+    private static ByteString toJson(Map<String, Object> document) {
+        if (document instanceof EncodedDocument) {
+            return UnsafeByteOperations.unsafeWrap(((EncodedDocument) document).json());
+        }
+        return ByteString.copyFromUtf8(new JSONObject(document).toString());
+    }
+
     @Override
     public void get(GetRequest request, StreamObserver<GetResponse> responseObserver) {
         try {
@@ -88,7 +125,7 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
             } else {
                 responseObserver.onNext(GetResponse.newBuilder()
                         .setSuccess(true)
-                        .setDocument(new JSONObject(document).toString())
+                        .setDocumentBytes(toJson(document))
                         .setCode(ErrorCode.OK)
                         .build());
             }
@@ -107,12 +144,14 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
     @Override
     public void query(QueryRequest request, StreamObserver<QueryResponse> responseObserver) {
         try {
-            List<Map<String, Object>> documents = storage.queryDocuments(request.getCollection(), request.getField(), request.getValue());
+            List<Map<String, Object>> documents = request.getFilter().isEmpty()
+                    ? storage.queryDocuments(request.getCollection(), request.getField(), request.getValue())
+                    : storage.queryFilter(request.getCollection(), parseFilter(new JSONObject(request.getFilter())));
             QueryResponse.Builder response = QueryResponse.newBuilder()
                     .setSuccess(true)
                     .setCode(ErrorCode.OK);
             for (Map<String, Object> doc : documents) {
-                response.addDocuments(new JSONObject(doc).toString());
+                response.addDocumentsBytes(toJson(doc));
             }
             responseObserver.onNext(response.build());
         } catch (Exception e) {
@@ -128,60 +167,122 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
     }
 
     @Override
-    public void enhancedQuery(EnhancedQueryRequest request, StreamObserver<EnhancedQueryResponse> responseObserver) {
+    public void createIndex(CreateIndexRequest request, StreamObserver<CreateIndexResponse> responseObserver) {
         try {
-            List<Map<String, Object>> allDocuments;
-
-            // Get documents based on request type
-            if (request.getGetAll()) {
-                // Get all documents in collection
-                allDocuments = storage.getAllDocuments(request.getCollection());
-            } else if (!request.getWhereCondition().isEmpty()) {
-                // Apply where condition
-                allDocuments = processWhereCondition(request.getCollection(), request.getWhereCondition());
-            } else {
-                // No specific condition, get all
-                allDocuments = storage.getAllDocuments(request.getCollection());
+            List<String> fields = new ArrayList<>();
+            for (String field : request.getFieldsList()) {
+                fields.add(field.trim());
             }
+            storage.createIndex(request.getCollection(), fields);
+            responseObserver.onNext(CreateIndexResponse.newBuilder()
+                    .setSuccess(true)
+                    .setCode(ErrorCode.OK)
+                    .build());
+        } catch (Exception e) {
+            e.printStackTrace();
+            String errorMsg = (e.getMessage() != null) ? e.getMessage() : e.toString();
+            responseObserver.onNext(CreateIndexResponse.newBuilder()
+                    .setSuccess(false)
+                    .setError(errorMsg)
+                    .setCode(e instanceof IllegalArgumentException ? ErrorCode.INVALID_QUERY : ErrorCode.INTERNAL_ERROR)
+                    .build());
+        }
+        responseObserver.onCompleted();
+    }
 
-            // Apply sorting if specified
-            if (!request.getSort().isEmpty()) {
-                allDocuments = applySorting(allDocuments, request.getSort());
+    /**
+     * Parses a query filter. Each key is a field that must equal its value, or an object of
+     * $gt/$gte/$lt/$lte bounds the field must lie within; "$and" and "$or" take an array of
+     * nested filters. All keys of one object must hold.
+     */
+    private static Filter parseFilter(JSONObject filter) {
+        List<Filter> children = new ArrayList<>();
+        for (String field : filter.keySet()) {
+            Object value = filter.get(field);
+            if (field.equals("$and") || field.equals("$or")) {
+                if (!(value instanceof org.json.JSONArray)) {
+                    throw new IllegalArgumentException(field + " takes an array of filters");
+                }
+                List<Filter> branches = new ArrayList<>();
+                for (Object branch : (org.json.JSONArray) value) {
+                    if (!(branch instanceof JSONObject)) {
+                        throw new IllegalArgumentException(field + " takes an array of filters");
+                    }
+                    branches.add(parseFilter((JSONObject) branch));
+                }
+                children.add(field.equals("$and") ? Filter.and(branches) : Filter.or(branches));
+            } else if (value instanceof JSONObject && isRange((JSONObject) value)) {
+                JSONObject range = (JSONObject) value;
+                Object lower = null;
+                Object upper = null;
+                boolean lowerInclusive = false;
+                boolean upperInclusive = false;
+                for (String operator : range.keySet()) {
+                    Object bound = toValue(range.get(operator));
+                    switch (operator) {
+                        case "$gt": lower = bound; lowerInclusive = false; break;
+                        case "$gte": lower = bound; lowerInclusive = true; break;
+                        case "$lt": upper = bound; upperInclusive = false; break;
+                        case "$lte": upper = bound; upperInclusive = true; break;
+                        default: throw new IllegalArgumentException("Unsupported operator " + operator + " on '" + field + "'");
+                    }
+                }
+                children.add(Filter.of(Condition.range(field, lower, lowerInclusive, upper, upperInclusive)));
+            } else {
+                children.add(Filter.of(Condition.equalTo(field, toValue(value))));
             }
+        }
+        return Filter.and(children);
+    }
 
-            int totalCount = allDocuments.size();
+    private static boolean isRange(JSONObject value) {
+        return !value.isEmpty() && value.keySet().stream().allMatch(key -> key.startsWith("$"));
+    }
 
-            // Apply pagination (skip and limit)
-            if (request.getSkip() > 0) {
-                allDocuments = allDocuments.stream()
-                        .skip(request.getSkip())
-                        .collect(Collectors.toList());
-            }
+    // Converts a parsed JSON value to the form stored documents use
+    private static Object toValue(Object json) {
+        if (json == JSONObject.NULL) return null;
+        if (json instanceof JSONObject) return ((JSONObject) json).toMap();
+        if (json instanceof org.json.JSONArray) return ((org.json.JSONArray) json).toList();
+        return json;
+    }
 
-            boolean hasMore = false;
-            if (request.getLimit() > 0 && allDocuments.size() > request.getLimit()) {
-                allDocuments = allDocuments.stream()
-                        .limit(request.getLimit())
-                        .collect(Collectors.toList());
-                hasMore = true;
+    @Override
+    public void enhancedQuery(EnhancedQueryRequest request, StreamObserver<EnhancedQueryResponse> responseObserver) {
+        try {
+            QuerySpec spec = toSpec(request.getGetAll() ? null : where.compile(request.getWhereCondition()),
+                    request.getSort(), request.getSkip(), request.getLimit(), request.getFields());
+            if (!request.getCursor().isEmpty()) {
+                spec.after = QueryCursor.decode(request.getCursor(), spec);
             }
 
-            // Apply field selection if specified
-            if (!request.getFields().isEmpty()) {
-                allDocuments = applyFieldSelection(allDocuments, request.getFields());
+            if (request.getExplain()) {
+                responseObserver.onNext(EnhancedQueryResponse.newBuilder()
+                        .setSuccess(true)
+                        .setCode(ErrorCode.OK)
+                        .setPlan(storage.explainQuery(request.getCollection(), spec))
+                        .build());
+                responseObserver.onCompleted();
+                return;
             }
 
+            // The planner picks the access path and reads only what the page needs
+            QueryResult result = storage.executeQuery(request.getCollection(), spec);
+
             // Build response
             EnhancedQueryResponse.Builder responseBuilder = EnhancedQueryResponse.newBuilder()
                     .setSuccess(true)
                     .setCode(ErrorCode.OK)
-                    .setResultCount(totalCount)
-                    .setReturnedCount(allDocuments.size())
-                    .setHasMore(hasMore);
+                    .setResultCount(result.totalCount)
+                    .setReturnedCount(result.documents.size())
+                    .setHasMore(result.hasMore);
+            if (result.nextCursor != null) {
+                responseBuilder.setNextCursor(result.nextCursor.encode());
+            }
 
             // Convert documents to JSON strings
-            for (Map<String, Object> doc : allDocuments) {
-                responseBuilder.addDocuments(new JSONObject(doc).toString());
+            for (Map<String, Object> doc : result.documents) {
+                responseBuilder.addDocumentsBytes(toJson(doc));
             }
 
             responseObserver.onNext(responseBuilder.build());
@@ -198,145 +299,146 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
         responseObserver.onCompleted();
     }
 
-    // Helper method to process where conditions
-    private List<Map<String, Object>> processWhereCondition(String collection, String whereCondition) {
+    @Override
+    public void streamQuery(StreamQueryRequest request, StreamObserver<QueryBatch> responseObserver) {
+        QueryStream stream;
         try {
-            // Parse simple conditions like "field=value", "field>=value", etc.
-            String condition = whereCondition.trim();
-
-            // Handle different operators
-            if (condition.contains(">=")) {
-                String[] parts = condition.split(">=", 2);
-                return filterByComparison(collection, parts[0].trim(), parts[1].trim(), ">=");
-            } else if (condition.contains("<=")) {
-                String[] parts = condition.split("<=", 2);
-                return filterByComparison(collection, parts[0].trim(), parts[1].trim(), "<=");
-            } else if (condition.contains("!=")) {
-                String[] parts = condition.split("!=", 2);
-                return filterByComparison(collection, parts[0].trim(), parts[1].trim(), "!=");
-            } else if (condition.contains(">")) {
-                String[] parts = condition.split(">", 2);
-                return filterByComparison(collection, parts[0].trim(), parts[1].trim(), ">");
-            } else if (condition.contains("<")) {
-                String[] parts = condition.split("<", 2);
-                return filterByComparison(collection, parts[0].trim(), parts[1].trim(), "<");
-            } else if (condition.contains("=")) {
-                String[] parts = condition.split("=", 2);
-                return storage.queryDocuments(collection, parts[0].trim(), parts[1].trim());
-            } else {
-                // Fallback to getting all documents
-                return storage.getAllDocuments(collection);
-            }
+            Filter filter = request.getFilter().isEmpty()
+                    ? where.compile(request.getWhereCondition())
+                    : parseFilter(new JSONObject(request.getFilter()));
+            stream = storage.streamQuery(request.getCollection(),
+                    toSpec(filter, request.getSort(), request.getSkip(), request.getLimit(), request.getFields()));
         } catch (Exception e) {
-            // If parsing fails, return all documents
-            return storage.getAllDocuments(collection);
+            e.printStackTrace();
+            String errorMsg = (e.getMessage() != null) ? e.getMessage() : e.toString();
+            responseObserver.onNext(QueryBatch.newBuilder()
+                    .setSuccess(false)
+                    .setError(errorMsg)
+                    .setCode(ErrorCode.INVALID_QUERY)
+                    .build());
+            responseObserver.onCompleted();
+            return;
         }
-    }
+        int batchSize = request.getBatchSize() > 0 ? Math.min(request.getBatchSize(), MAX_STREAM_BATCH) : DEFAULT_STREAM_BATCH;
 
-    // Helper method for comparison operations
-    private List<Map<String, Object>> filterByComparison(String collection, String field, String value, String operator) {
-        List<Map<String, Object>> allDocs = storage.getAllDocuments(collection);
-        return allDocs.stream()
-                .filter(doc -> compareValues(doc.get(field), value, operator))
-                .collect(Collectors.toList());
-    }
+        if (!(responseObserver instanceof ServerCallStreamObserver)) {
+            while (sendBatch(stream, batchSize, responseObserver)) {
+            }
+            responseObserver.onCompleted();
+            return;
+        }
 
-    // Helper method to compare values
-    private boolean compareValues(Object docValue, String targetValue, String operator) {
-        if (docValue == null) return false;
+        // Read from storage only while the transport can take more; gRPC runs the handler
+        // again once the client has caught up, and never while it is still running
+        ServerCallStreamObserver<QueryBatch> call = (ServerCallStreamObserver<QueryBatch>) responseObserver;
+        AtomicBoolean finished = new AtomicBoolean(false);
+        call.setOnCancelHandler(() -> finished.set(true));
+        call.setOnReadyHandler(() -> {
+            try {
+                while (!finished.get() && call.isReady()) {
+                    if (!sendBatch(stream, batchSize, call)) {
+                        finished.set(true);
+                        call.onCompleted();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (finished.compareAndSet(false, true)) {
+                    String errorMsg = (e.getMessage() != null) ? e.getMessage() : e.toString();
+                    call.onNext(QueryBatch.newBuilder()
+                            .setSuccess(false)
+                            .setError(errorMsg)
+                            .setCode(ErrorCode.INTERNAL_ERROR)
+                            .build());
+                    call.onCompleted();
+                }
+            }
+        });
+    }
 
+    @Override
+    public void aggregate(AggregateRequest request, StreamObserver<AggregateResponse> responseObserver) {
         try {
-            // Try numeric comparison first
-            if (docValue instanceof Number && isNumeric(targetValue)) {
-                double docNum = ((Number) docValue).doubleValue();
-                double targetNum = Double.parseDouble(targetValue);
-
-                switch (operator) {
-                    case ">": return docNum > targetNum;
-                    case "<": return docNum < targetNum;
-                    case ">=": return docNum >= targetNum;
-                    case "<=": return docNum <= targetNum;
-                    case "!=": return docNum != targetNum;
-                    default: return docNum == targetNum;
-                }
+            Filter filter = request.getFilter().isEmpty()
+                    ? where.compile(request.getWhereCondition())
+                    : parseFilter(new JSONObject(request.getFilter()));
+            Aggregation aggregation = Aggregation.parse(request.getGroupByList(), request.getAggregatesList());
+
+            AggregateResponse.Builder response = AggregateResponse.newBuilder()
+                    .setSuccess(true)
+                    .setCode(ErrorCode.OK);
+            if (request.getExplain()) {
+                response.setPlan(storage.explainAggregate(request.getCollection(), filter, aggregation));
             } else {
-                // String comparison
-                String docStr = docValue.toString();
-                switch (operator) {
-                    case "!=": return !docStr.equals(targetValue);
-                    default: return docStr.equals(targetValue);
+                for (Map<String, Object> group : storage.aggregate(request.getCollection(), filter, aggregation)) {
+                    // Unlike new JSONObject(map), keeps null group values and aggregates
+                    JSONObject json = new JSONObject();
+                    group.forEach((name, value) -> json.put(name, value == null ? JSONObject.NULL : JSONObject.wrap(value)));
+                    response.addGroups(json.toString());
                 }
             }
+            responseObserver.onNext(response.build());
         } catch (Exception e) {
-            return false;
+            e.printStackTrace();
+            String errorMsg = (e.getMessage() != null) ? e.getMessage() : e.toString();
+            responseObserver.onNext(AggregateResponse.newBuilder()
+                    .setSuccess(false)
+                    .setError(errorMsg)
+                    .setCode(e instanceof IllegalArgumentException || e instanceof JSONException
+                            ? ErrorCode.INVALID_QUERY : ErrorCode.INTERNAL_ERROR)
+                    .build());
         }
+        responseObserver.onCompleted();
     }
 
-    // Helper method to check if string is numeric
-    private boolean isNumeric(String str) {
-        try {
-            Double.parseDouble(str);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
+    /**
+     * Sends the next documents of the stream, split so that no message exceeds
+     * STREAM_BATCH_BYTES by more than one document.
+     * @return false once the stream is exhausted
+     */
+    private static boolean sendBatch(QueryStream stream, int batchSize, StreamObserver<QueryBatch> observer) {
+        List<Map<String, Object>> documents;
+        do {
+            documents = stream.next(batchSize);
+            if (documents == null) return false;
+        } while (documents.isEmpty());
+
+        QueryBatch.Builder batch = QueryBatch.newBuilder().setSuccess(true).setCode(ErrorCode.OK);
+        long bytes = 0;
+        for (Map<String, Object> doc : documents) {
+            ByteString json = toJson(doc);
+            if (bytes > 0 && bytes + json.size() > STREAM_BATCH_BYTES) {
+                observer.onNext(batch.build());
+                batch = QueryBatch.newBuilder().setSuccess(true).setCode(ErrorCode.OK);
+                bytes = 0;
+            }
+            batch.addDocumentsBytes(json);
+            bytes += json.size();
         }
+        observer.onNext(batch.build());
+        return true;
     }
 
-    // Helper method to apply sorting
-    private List<Map<String, Object>> applySorting(List<Map<String, Object>> documents, String sort) {
-        try {
-            String[] parts = sort.split(" ", 2);
-            String field = parts[0].trim();
-            boolean ascending = parts.length == 1 || parts[1].trim().equalsIgnoreCase("ASC");
-
-            return documents.stream()
-                    .sorted((doc1, doc2) -> {
-                        Object val1 = doc1.get(field);
-                        Object val2 = doc2.get(field);
-
-                        if (val1 == null && val2 == null) return 0;
-                        if (val1 == null) return ascending ? -1 : 1;
-                        if (val2 == null) return ascending ? 1 : -1;
-
-                        int comparison;
-                        if (val1 instanceof Number && val2 instanceof Number) {
-                            comparison = Double.compare(((Number) val1).doubleValue(), ((Number) val2).doubleValue());
-                        } else {
-                            comparison = val1.toString().compareTo(val2.toString());
-                        }
-
-                        return ascending ? comparison : -comparison;
-                    })
-                    .collect(Collectors.toList());
-        } catch (Exception e) {
-            // If sorting fails, return original list
-            return documents;
+    // Builds a query from the request fields shared by EnhancedQuery and StreamQuery
+    private static QuerySpec toSpec(Filter filter, String sort, int skip, int limit, String fields) {
+        QuerySpec spec = new QuerySpec(filter);
+        if (!sort.isEmpty()) {
+            String[] parts = sort.trim().split(" ", 2);
+            spec.sortField = parts[0].trim();
+            spec.ascending = parts.length == 1 || parts[1].trim().equalsIgnoreCase("ASC");
         }
-    }
-
-    // Helper method to apply field selection
-    private List<Map<String, Object>> applyFieldSelection(List<Map<String, Object>> documents, String fields) {
-        try {
-            Set<String> fieldSet = Arrays.stream(fields.split(","))
+        spec.skip = Math.max(0, skip);
+        spec.limit = Math.max(0, limit);
+        if (!fields.isEmpty()) {
+            spec.fields = Arrays.stream(fields.split(","))
                     .map(String::trim)
-                    .collect(Collectors.toSet());
-
-            return documents.stream()
-                    .map(doc -> {
-                        Map<String, Object> filteredDoc = new HashMap<>();
-                        for (String field : fieldSet) {
-                            if (doc.containsKey(field)) {
-                                filteredDoc.put(field, doc.get(field));
-                            }
-                        }
-                        return filteredDoc;
-                    })
+                    .filter(field -> !field.isEmpty())
+                    .distinct()
                     .collect(Collectors.toList());
-        } catch (Exception e) {
-            // If field selection fails, return original documents
-            return documents;
         }
+        return spec;
     }
+
     // --- Synchronous helper methods for REST API ---
     public InsertResponse insertSync(String collection, String id, String document) {
         InsertRequest request = InsertRequest.newBuilder()
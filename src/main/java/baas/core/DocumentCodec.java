@@ -0,0 +1,325 @@
+package baas.core;
+
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary encoding for documents and the values produced by {@code JSONObject.toMap()}.
+ * Every value starts with a one-byte type tag; lengths and counts are unsigned varints,
+ * fixed-width numbers are big-endian.
+ */
+public final class DocumentCodec {
+    static final byte NULL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte INT = 3;
+    static final byte LONG = 4;
+    static final byte DOUBLE = 5;
+    static final byte STRING = 6;
+    static final byte MAP = 7;
+    static final byte LIST = 8;
+    static final byte BIG_DECIMAL = 9;
+    static final byte BIG_INTEGER = 10;
+
+    private DocumentCodec() {
+    }
+
+    public static byte[] encode(Map<String, Object> document) {
+        Writer writer = new Writer(128);
+        writer.writeValue(document);
+        return writer.toByteArray();
+    }
+
+    public static Map<String, Object> decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> decode(ByteBuffer buffer) {
+        Object value = readValue(buffer);
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("Encoded value is not a document");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    static Object readValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL: return null;
+            case FALSE: return Boolean.FALSE;
+            case TRUE: return Boolean.TRUE;
+            case INT: return buffer.getInt();
+            case LONG: return buffer.getLong();
+            case DOUBLE: return buffer.getDouble();
+            case STRING: return readString(buffer);
+            case MAP: {
+                int size = readVarint(buffer);
+                Map<String, Object> map = new HashMap<>(Math.max(4, (int) (size / 0.75f) + 1));
+                for (int i = 0; i < size; i++) {
+                    String key = readString(buffer);
+                    map.put(key, readValue(buffer));
+                }
+                return map;
+            }
+            case LIST: {
+                int size = readVarint(buffer);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(buffer));
+                }
+                return list;
+            }
+            case BIG_DECIMAL: return new BigDecimal(readString(buffer));
+            case BIG_INTEGER: return new BigInteger(readString(buffer));
+            default:
+                throw new IllegalArgumentException("Unknown value tag: " + tag);
+        }
+    }
+
+    /**
+     * Appends the JSON form of the value at the buffer's position and moves past it, writing
+     * what {@code JSONObject} would for the decoded value: null map entries are left out and
+     * numbers are formatted by {@link JSONObject#numberToString}. Only strings and big numbers
+     * are materialized on the way.
+     */
+    static void appendJson(ByteBuffer buffer, StringBuilder out) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL: out.append("null"); break;
+            case FALSE: out.append("false"); break;
+            case TRUE: out.append("true"); break;
+            case INT: out.append(buffer.getInt()); break;
+            case LONG: out.append(buffer.getLong()); break;
+            case DOUBLE: out.append(JSONObject.numberToString(buffer.getDouble())); break;
+            case STRING: appendQuoted(readString(buffer), out); break;
+            case MAP: {
+                int size = readVarint(buffer);
+                out.append('{');
+                boolean first = true;
+                for (int i = 0; i < size; i++) {
+                    String key = readString(buffer);
+                    if (buffer.get(buffer.position()) == NULL) {
+                        buffer.get();
+                        continue;
+                    }
+                    if (!first) out.append(',');
+                    first = false;
+                    appendQuoted(key, out);
+                    out.append(':');
+                    appendJson(buffer, out);
+                }
+                out.append('}');
+                break;
+            }
+            case LIST: {
+                int size = readVarint(buffer);
+                out.append('[');
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) out.append(',');
+                    appendJson(buffer, out);
+                }
+                out.append(']');
+                break;
+            }
+            case BIG_DECIMAL: out.append(JSONObject.numberToString(new BigDecimal(readString(buffer)))); break;
+            case BIG_INTEGER: out.append(JSONObject.numberToString(new BigInteger(readString(buffer)))); break;
+            default:
+                throw new IllegalArgumentException("Unknown value tag: " + tag);
+        }
+    }
+
+    /**
+     * Appends the string as a JSON string literal, escaped exactly as {@link JSONObject#quote}
+     * escapes it, without the intermediate writer that method allocates.
+     */
+    static void appendQuoted(String string, StringBuilder out) {
+        out.append('"');
+        char previous;
+        char c = 0;
+        for (int i = 0; i < string.length(); i++) {
+            previous = c;
+            c = string.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    out.append('\\').append(c);
+                    break;
+                case '/':
+                    if (previous == '<') out.append('\\');
+                    out.append(c);
+                    break;
+                case '\b': out.append("\\b"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\f': out.append("\\f"); break;
+                case '\r': out.append("\\r"); break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        String hex = Integer.toHexString(c);
+                        out.append("\\u");
+                        for (int pad = hex.length(); pad < 4; pad++) {
+                            out.append('0');
+                        }
+                        out.append(hex);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = readVarint(buffer);
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(buffer.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Growable byte buffer with the primitives used by the codec.
+     */
+    static class Writer {
+        private byte[] buf;
+        private int size;
+
+        Writer(int initialCapacity) {
+            this.buf = new byte[initialCapacity];
+        }
+
+        void writeValue(Object value) {
+            if (value == null || value == JSONObject.NULL) {
+                writeByte(NULL);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeByte(INT);
+                writeInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                writeByte(LONG);
+                writeLong((Long) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                writeByte(DOUBLE);
+                writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof BigDecimal) {
+                writeByte(BIG_DECIMAL);
+                writeString(value.toString());
+            } else if (value instanceof BigInteger) {
+                writeByte(BIG_INTEGER);
+                writeString(value.toString());
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                writeByte(MAP);
+                writeVarint(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeString(String.valueOf(entry.getKey()));
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof Collection) {
+                Collection<?> list = (Collection<?>) value;
+                writeByte(LIST);
+                writeVarint(list.size());
+                for (Object item : list) {
+                    writeValue(item);
+                }
+            } else {
+                writeByte(STRING);
+                writeString(value.toString());
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buf[size++] = (byte) (v >>> 24);
+            buf[size++] = (byte) (v >>> 16);
+            buf[size++] = (byte) (v >>> 8);
+            buf[size++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarint(int v) {
+            while ((v & ~0x7F) != 0) {
+                writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            writeByte(v);
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, size, length);
+            size += length;
+        }
+
+        // Overwrites four bytes already written at position
+        void setInt(int position, int v) {
+            buf[position] = (byte) (v >>> 24);
+            buf[position + 1] = (byte) (v >>> 16);
+            buf[position + 2] = (byte) (v >>> 8);
+            buf[position + 3] = (byte) v;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Backing array; only the first size() bytes are valid
+        byte[] array() {
+            return buf;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package baas.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Storage engine holding the documents of one collection, keyed by id. StorageService guards
+ * each store with its collection's lock: writes are exclusive, but several readers may call
+ * {@link #get} and {@link #scan} concurrently. Stored documents are never mutated in place,
+ * and callers must not modify the maps a store returns.
+ */
+public interface DocumentStore extends Closeable {
+
+    Map<String, Object> get(String id);
+
+    /**
+     * @return the document previously stored under the id, or {@code null}
+     */
+    Map<String, Object> put(String id, Map<String, Object> document);
+
+    /**
+     * @return the removed document, or {@code null} if there was none
+     */
+    Map<String, Object> remove(String id);
+
+    int size();
+
+    /**
+     * Iterates documents in id order, starting after {@code afterId}, or from the first id
+     * when it is {@code null}.
+     */
+    Iterator<Map.Entry<String, Map<String, Object>>> scan(String afterId);
+
+    default Iterable<Map.Entry<String, Map<String, Object>>> entries() {
+        return () -> scan(null);
+    }
+
+    void clear();
+
+    // Bulk load into an empty store
+    default void putAll(NavigableMap<String, Map<String, Object>> documents) {
+        documents.forEach(this::put);
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,59 @@
+package baas.core;
+
+import java.util.Locale;
+
+/**
+ * How much of a write must reach disk before the insert is acknowledged.
+ * Selectable per collection ({@code durability.<collection>} in config.properties, or
+ * {@link StorageService#setDurability}) and per request; collections default to GROUP.
+ *
+ * <p>Inserts per second with one and with 16 writers, each inserting documents with one
+ * 100-byte field, as measured by {@code DurabilityBenchmark} (src/test) on a single-core VM with
+ * a virtual disk and JDK 21:
+ * <pre>
+ *   SYNC      9,676 /  58,908
+ *   GROUP    11,056 /  54,719
+ *   ASYNC   166,811 / 246,801
+ *   NONE    451,510 / 628,495
+ * </pre>
+ * SYNC and GROUP do the same work unless the WAL is given a batch delay, and differ by no more
+ * than run-to-run noise here; the fsync, not the CPU, bounds both.
+ */
+public enum Durability {
+    /**
+     * Flushed and fsynced before the insert returns, without waiting for other writers.
+     * Loss window: none.
+     */
+    SYNC,
+
+    /**
+     * Batched with concurrent writers and covered by a shared fsync before the insert returns.
+     * Loss window: none; latency grows by at most the WAL's max batch delay.
+     */
+    GROUP,
+
+    /**
+     * Queued for the WAL and acknowledged immediately; the file is fsynced in the background.
+     * Loss window: on a process crash, records still queued (normally under a millisecond);
+     * on power loss, additionally up to the WAL's background sync interval.
+     */
+    ASYNC,
+
+    /**
+     * Not written to the WAL at all.
+     * Loss window: everything written since the last snapshot.
+     */
+    NONE;
+
+    /**
+     * The durability with this name, ignoring case, e.g. {@code "group"}.
+     * @throws IllegalArgumentException if there is none
+     */
+    public static Durability parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown durability: " + name.trim() + " (expected sync, group, async or none)");
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package baas.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Immutable document held as a single byte array instead of a {@code HashMap} of boxed values;
+ * the mutators inherited from {@link AbstractMap} throw {@link UnsupportedOperationException}.
+ * <pre>
+ * document := count:varint fieldId:varint* valueOffset:i32* value*
+ * </pre>
+ * Field ids refer to the collection's {@link FieldDictionary}; each value offset points at a
+ * value in the {@link DocumentCodec} encoding, so a field is decoded only when it is read.
+ * Values are decoded again on every access; callers that read the same field repeatedly
+ * should keep the result. The JSON form is written straight from the encoded values on first
+ * use and kept with the document, so a document that is read repeatedly is serialized only
+ * once, and a {@link #project projection} serializes only the fields it took.
+ */
+public final class EncodedDocument extends AbstractMap<String, Object> {
+    private final FieldDictionary dictionary;
+    private final byte[] bytes;
+    // Benign race: two readers may both serialize, either result is correct
+    private volatile byte[] json;
+
+    EncodedDocument(FieldDictionary dictionary, byte[] bytes) {
+        this.dictionary = dictionary;
+        this.bytes = bytes;
+    }
+
+    static EncodedDocument encode(Map<String, Object> document, FieldDictionary dictionary) {
+        if (document instanceof EncodedDocument && ((EncodedDocument) document).dictionary == dictionary) {
+            return (EncodedDocument) document;
+        }
+
+        int count = document.size();
+        int[] fieldIds = new int[count];
+        Object[] values = new Object[count];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            fieldIds[i] = dictionary.intern(entry.getKey());
+            values[i] = entry.getValue();
+            i++;
+        }
+
+        DocumentCodec.Writer writer = new DocumentCodec.Writer(32 + count * 12);
+        writer.writeVarint(count);
+        for (int fieldId : fieldIds) {
+            writer.writeVarint(fieldId);
+        }
+        int offsetTable = writer.size();
+        for (i = 0; i < count; i++) {
+            writer.writeInt(0);
+        }
+        for (i = 0; i < count; i++) {
+            writer.setInt(offsetTable + i * 4, writer.size());
+            writer.writeValue(values[i]);
+        }
+        return new EncodedDocument(dictionary, writer.toByteArray());
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the document as UTF-8 JSON; the array is shared and must not be modified
+     */
+    public byte[] json() {
+        byte[] cached = json;
+        if (cached == null) {
+            cached = toJson().getBytes(StandardCharsets.UTF_8);
+            json = cached;
+        }
+        return cached;
+    }
+
+    // Written from the encoded values directly, as JSONObject would write the decoded map
+    private String toJson() {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int count = DocumentCodec.readVarint(buffer);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = dictionary.nameOf(DocumentCodec.readVarint(buffer));
+        }
+        buffer.position(buffer.position() + count * 4);
+
+        StringBuilder out = new StringBuilder(bytes.length + count * 8);
+        out.append('{');
+        boolean first = true;
+        for (int i = 0; i < count; i++) {
+            if (buffer.get(buffer.position()) == DocumentCodec.NULL) {
+                buffer.get();
+                continue;
+            }
+            if (!first) out.append(',');
+            first = false;
+            DocumentCodec.appendQuoted(names[i], out);
+            out.append(':');
+            DocumentCodec.appendJson(buffer, out);
+        }
+        return out.append('}').toString();
+    }
+
+    @Override
+    public int size() {
+        return DocumentCodec.readVarint(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return slotOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return getOrDefault(key, null);
+    }
+
+    // One lookup where get followed by containsKey would take two
+    @Override
+    public Object getOrDefault(Object key, Object defaultValue) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int slot = slotOf(key, buffer);
+        if (slot < 0) return defaultValue;
+        return DocumentCodec.readValue(buffer.position(buffer.getInt(buffer.position() + slot * 4)));
+    }
+
+    /**
+     * The named fields of this document, in the order given, as a document of their own;
+     * names it lacks are left out. Values are copied in their encoded form rather than decoded,
+     * so the cost follows the fields taken, not the width of the document.
+     */
+    EncodedDocument project(List<String> fields) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int count = DocumentCodec.readVarint(buffer);
+        int[] fieldIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            fieldIds[i] = DocumentCodec.readVarint(buffer);
+        }
+        int offsetTable = buffer.position();
+
+        int[] slots = new int[Math.min(fields.size(), count)];
+        int taken = 0;
+        boolean whole = true;
+        for (String field : fields) {
+            int fieldId = dictionary.idOf(field);
+            int slot = -1;
+            for (int i = 0; i < count && fieldId >= 0; i++) {
+                if (fieldIds[i] == fieldId) slot = i;
+            }
+            if (slot < 0 || contains(slots, taken, slot)) continue;
+            whole &= slot == taken;
+            slots[taken++] = slot;
+        }
+        // Every field in stored order: this document will do, along with its cached JSON
+        if (whole && taken == count) return this;
+
+        DocumentCodec.Writer writer = new DocumentCodec.Writer(16 + taken * 16);
+        writer.writeVarint(taken);
+        for (int i = 0; i < taken; i++) {
+            writer.writeVarint(fieldIds[slots[i]]);
+        }
+        int projectedTable = writer.size();
+        for (int i = 0; i < taken; i++) {
+            writer.writeInt(0);
+        }
+        for (int i = 0; i < taken; i++) {
+            // Values are stored back to back, so each ends where the next one starts
+            int start = buffer.getInt(offsetTable + slots[i] * 4);
+            int end = slots[i] + 1 < count ? buffer.getInt(offsetTable + (slots[i] + 1) * 4) : bytes.length;
+            writer.setInt(projectedTable + i * 4, writer.size());
+            writer.writeBytes(bytes, start, end - start);
+        }
+        return new EncodedDocument(dictionary, writer.toByteArray());
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) return true;
+        }
+        return false;
+    }
+
+    private int slotOf(Object key) {
+        return slotOf(key, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Finds the field's position among the document's fields and leaves the buffer at the
+     * start of the value offset table.
+     * @return the slot, or -1 if the document has no such field
+     */
+    private int slotOf(Object key, ByteBuffer buffer) {
+        int fieldId = dictionary.idOf(key);
+        if (fieldId < 0) return -1;
+
+        int count = DocumentCodec.readVarint(buffer);
+        int slot = -1;
+        for (int i = 0; i < count; i++) {
+            if (DocumentCodec.readVarint(buffer) == fieldId) {
+                slot = i;
+            }
+        }
+        return slot;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                int count = DocumentCodec.readVarint(buffer);
+                String[] names = new String[count];
+                for (int i = 0; i < count; i++) {
+                    names[i] = dictionary.nameOf(DocumentCodec.readVarint(buffer));
+                }
+                // Values are stored back to back after the offset table
+                buffer.position(buffer.position() + count * 4);
+
+                return new Iterator<>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < count;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        if (next >= count) throw new NoSuchElementException();
+                        return new SimpleImmutableEntry<>(names[next++], DocumentCodec.readValue(buffer));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return EncodedDocument.this.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,72 @@
+package baas.core;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background TTL sweeper. Every tick it asks the storage to delete at most
+ * {@code maxPerTick} documents whose expiry bucket has passed, so expired data
+ * that is never read still leaves the heap and future snapshots.
+ */
+public class ExpiryManager {
+    private final StorageService storage;
+    private final long tickMillis;
+    private final int maxPerTick;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong expiredTotal = new AtomicLong();
+    private volatile double expiredPerSecond = 0;
+    private volatile long backlog = 0;
+    private long lastTickNanos;     // only touched by the sweeper thread
+
+    public ExpiryManager(StorageService storage, long tickMillis, int maxPerTick) {
+        this.storage = storage;
+        this.tickMillis = tickMillis;
+        this.maxPerTick = maxPerTick;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "baas-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        lastTickNanos = System.nanoTime();
+        scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            int expired = storage.sweepExpired(now, maxPerTick);
+            expiredTotal.addAndGet(expired);
+            // A fixed-delay schedule adds each sweep's own duration to the interval
+            long tickNanos = System.nanoTime();
+            expiredPerSecond = expired * 1e9 / Math.max(1, tickNanos - lastTickNanos);
+            lastTickNanos = tickNanos;
+            backlog = storage.countOverdue(now);
+        } catch (Exception e) {
+            System.err.println("TTL sweep failed: " + e.getMessage());
+        }
+    }
+
+    public long getExpiredTotal() {
+        return expiredTotal.get();
+    }
+
+    // Documents removed per second since the previous tick
+    public double getExpiredPerSecond() {
+        return expiredPerSecond;
+    }
+
+    // Documents already past their expiry that are still waiting to be swept
+    public long getBacklog() {
+        return backlog;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,47 @@
+package baas.core;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the top-level field names of one collection's documents as small integer ids, so
+ * each {@link EncodedDocument} stores a varint instead of the name. Lookups are lock-free;
+ * encoded documents are read outside the collection lock, so new names may be added while
+ * other threads resolve ids.
+ */
+final class FieldDictionary {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int count = 0;
+
+    int intern(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : add(name);
+    }
+
+    private synchronized int add(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        String[] current = names;
+        if (count == current.length) {
+            current = Arrays.copyOf(current, count * 2);
+        }
+        current[count] = name;
+        names = current; // publish the name before its id becomes visible
+        ids.put(name, count);
+        return count++;
+    }
+
+    // Id of an interned name, or -1
+    int idOf(Object name) {
+        if (name == null) return -1;
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    String nameOf(int id) {
+        return names[id];
+    }
+}
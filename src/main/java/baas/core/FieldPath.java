@@ -0,0 +1,40 @@
+package baas.core;
+
+import java.util.Map;
+
+/**
+ * Reads a possibly nested field of a document. A name such as {@code address.city} names the
+ * {@code city} field of the map stored under {@code address}, unless the document has a
+ * top-level field with that exact name, which takes precedence.
+ */
+final class FieldPath {
+    // Returned for a field the document does not have, as opposed to one holding null
+    static final Object ABSENT = new Object();
+
+    private FieldPath() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object resolve(Map<String, Object> document, String field) {
+        Object value = document.getOrDefault(field, ABSENT);
+        if (value != ABSENT) return value;
+
+        int start = 0;
+        int dot = field.indexOf('.');
+        if (dot < 0) return ABSENT;
+        Map<String, Object> current = document;
+        while (true) {
+            String segment = dot < 0 ? field.substring(start) : field.substring(start, dot);
+            value = current.getOrDefault(segment, ABSENT);
+            if (value == ABSENT || dot < 0) return value;
+            if (!(value instanceof Map)) return ABSENT;
+            current = (Map<String, Object>) value;
+            start = dot + 1;
+            dot = field.indexOf('.', start);
+        }
+    }
+
+    static boolean has(Map<String, Object> document, String field) {
+        return resolve(document, field) != ABSENT;
+    }
+}
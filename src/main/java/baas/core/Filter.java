@@ -0,0 +1,71 @@
+package baas.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Boolean combination of {@link Condition}s, evaluated by {@link StorageService#queryFilter}.
+ * An empty AND matches every document and an empty OR matches none. NOT matches every document
+ * its child does not, including those without the child's fields.
+ */
+public final class Filter {
+    enum Kind { CONDITION, AND, OR, NOT }
+
+    final Kind kind;
+    final Condition condition;
+    final List<Filter> children;
+
+    private Filter(Kind kind, Condition condition, List<Filter> children) {
+        this.kind = kind;
+        this.condition = condition;
+        this.children = children;
+    }
+
+    public static Filter of(Condition condition) {
+        return new Filter(Kind.CONDITION, condition, List.of());
+    }
+
+    public static Filter and(List<Filter> children) {
+        return children.size() == 1 ? children.get(0) : new Filter(Kind.AND, null, List.copyOf(children));
+    }
+
+    public static Filter or(List<Filter> children) {
+        return children.size() == 1 ? children.get(0) : new Filter(Kind.OR, null, List.copyOf(children));
+    }
+
+    public static Filter not(Filter child) {
+        return child.kind == Kind.NOT ? child.children.get(0) : new Filter(Kind.NOT, null, List.of(child));
+    }
+
+    boolean matches(Map<String, Object> document) {
+        switch (kind) {
+            case CONDITION:
+                return condition.matches(document);
+            case AND:
+                for (Filter child : children) {
+                    if (!child.matches(document)) return false;
+                }
+                return true;
+            case NOT:
+                return !children.get(0).matches(document);
+            default:
+                for (Filter child : children) {
+                    if (child.matches(document)) return true;
+                }
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (kind == Kind.CONDITION) return condition.toString();
+        if (kind == Kind.NOT) {
+            Filter child = children.get(0);
+            return child.kind == Kind.CONDITION ? "NOT (" + child + ")" : "NOT " + child;
+        }
+        return children.stream()
+                .map(Filter::toString)
+                .collect(Collectors.joining(kind == Kind.AND ? " AND " : " OR ", "(", ")"));
+    }
+}
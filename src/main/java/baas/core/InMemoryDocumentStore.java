@@ -0,0 +1,53 @@
+package baas.core;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Keeps every document of the collection on the heap in a sorted map. The default engine.
+ * Documents are stored as compact {@link EncodedDocument}s sharing one field dictionary.
+ */
+public class InMemoryDocumentStore implements DocumentStore {
+    private final NavigableMap<String, Map<String, Object>> documents = new TreeMap<>();
+    private final FieldDictionary dictionary = new FieldDictionary();
+
+    @Override
+    public Map<String, Object> get(String id) {
+        return documents.get(id);
+    }
+
+    @Override
+    public Map<String, Object> put(String id, Map<String, Object> document) {
+        return documents.put(id, EncodedDocument.encode(document, dictionary));
+    }
+
+    @Override
+    public Map<String, Object> remove(String id) {
+        return documents.remove(id);
+    }
+
+    @Override
+    public int size() {
+        return documents.size();
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Map<String, Object>>> scan(String afterId) {
+        return (afterId == null ? documents : documents.tailMap(afterId, false)).entrySet().iterator();
+    }
+
+    @Override
+    public void clear() {
+        documents.clear();
+    }
+
+    @Override
+    public void putAll(NavigableMap<String, Map<String, Object>> documents) {
+        NavigableMap<String, Map<String, Object>> encoded = new TreeMap<>();
+        documents.forEach((id, document) -> encoded.put(id, EncodedDocument.encode(document, dictionary)));
+        // Building from a sorted map into an empty one is linear
+        this.documents.putAll(encoded);
+    }
+}
@@ -0,0 +1,376 @@
+package baas.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Log-structured engine that keeps documents on disk, so a collection can outgrow the heap.
+ * Writes go to an in-memory memtable of {@link EncodedDocument} bytes; when it reaches its
+ * size limit it is flushed to an immutable {@link SSTable}. Lookups check a bounded LRU cache
+ * of recently read documents, then the memtable, then the tables from newest to oldest,
+ * skipping tables whose bloom filter rules the id out. Tables of similar size are merged once four of them line up
+ * (size-tiered compaction), and removal markers are dropped when the oldest table is merged.
+ * <p>The tables are a spill area, not a recovery source: durability still comes from
+ * snapshots and the WAL, which rebuild the store on startup. Files left by a previous run
+ * are deleted when the store is opened.
+ */
+public class LsmDocumentStore implements DocumentStore {
+    public static final long DEFAULT_MEMTABLE_BYTES = 8L * 1024 * 1024;
+    public static final int DEFAULT_CACHE_DOCUMENTS = 10_000;
+
+    private static final String TABLE_PREFIX = "table-";
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final int TIER_WIDTH = 4;
+
+    private final File directory;
+    private final long memtableLimitBytes;
+    private final Map<String, Map<String, Object>> cache;
+    private final FieldDictionary dictionary = new FieldDictionary();
+
+    private NavigableMap<String, byte[]> memtable = new TreeMap<>();
+    private long memtableBytes = 0;
+    // Newest first
+    private final List<SSTable> tables = new ArrayList<>();
+    private long nextTableId = 0;
+    private int size = 0;
+
+    public LsmDocumentStore(File directory) throws IOException {
+        this(directory, DEFAULT_MEMTABLE_BYTES, DEFAULT_CACHE_DOCUMENTS);
+    }
+
+    public LsmDocumentStore(File directory, long memtableLimitBytes, int cacheDocuments) throws IOException {
+        this.directory = directory;
+        this.memtableLimitBytes = memtableLimitBytes;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create storage directory " + directory);
+        }
+        deleteTableFiles();
+
+        // Readers share the cache under the collection's read lock, so it needs its own lock
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Object>> eldest) {
+                return size() > cacheDocuments;
+            }
+        });
+    }
+
+    /**
+     * Creates one store per collection, each in its own subdirectory of {@code root}.
+     */
+    public static Function<String, DocumentStore> factory(File root) {
+        return collection -> {
+            try {
+                return new LsmDocumentStore(new File(root, URLEncoder.encode(collection, StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    @Override
+    public Map<String, Object> get(String id) {
+        Map<String, Object> cached = cache.get(id);
+        if (cached != null) return cached;
+
+        byte[] encoded = memtable.get(id);
+        if (encoded == null) {
+            try {
+                for (SSTable table : tables) {
+                    encoded = table.get(id);
+                    if (encoded != null) break;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (encoded == null || encoded == SSTable.TOMBSTONE) return null;
+
+        Map<String, Object> document = new EncodedDocument(dictionary, encoded);
+        cache.put(id, document);
+        return document;
+    }
+
+    @Override
+    public Map<String, Object> put(String id, Map<String, Object> document) {
+        Map<String, Object> previous = get(id);
+        EncodedDocument encoded = EncodedDocument.encode(document, dictionary);
+        write(id, encoded.bytes());
+        cache.put(id, encoded);
+        if (previous == null) size++;
+        return previous;
+    }
+
+    @Override
+    public Map<String, Object> remove(String id) {
+        Map<String, Object> previous = get(id);
+        if (previous == null) return null;
+
+        cache.remove(id);
+        // Older tables may still hold the id, so the removal has to be recorded
+        write(id, SSTable.TOMBSTONE);
+        size--;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Map<String, Object>>> scan(String afterId) {
+        Iterator<Map.Entry<String, byte[]>> merged = mergedIterator(afterId);
+        return new Iterator<>() {
+            private Map.Entry<String, Map<String, Object>> next = advance();
+
+            private Map.Entry<String, Map<String, Object>> advance() {
+                while (merged.hasNext()) {
+                    Map.Entry<String, byte[]> entry = merged.next();
+                    if (entry.getValue() == SSTable.TOMBSTONE) continue;
+                    // Scans bypass the cache, so they do not evict hot documents
+                    Map<String, Object> document = new EncodedDocument(dictionary, entry.getValue());
+                    return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), document);
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, Map<String, Object>> next() {
+                if (next == null) throw new NoSuchElementException();
+                Map.Entry<String, Map<String, Object>> current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        memtable = new TreeMap<>();
+        memtableBytes = 0;
+        cache.clear();
+        size = 0;
+        try {
+            for (SSTable table : tables) {
+                table.close();
+                table.file().delete();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            tables.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SSTable table : tables) {
+            table.close();
+        }
+    }
+
+    private void write(String id, byte[] encoded) {
+        byte[] replaced = memtable.put(id, encoded);
+        memtableBytes += id.length() * 2L + encoded.length + 64;
+        if (replaced != null) {
+            memtableBytes -= id.length() * 2L + replaced.length + 64;
+        }
+        if (memtableBytes >= memtableLimitBytes) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to flush memtable to " + directory, e);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        if (memtable.isEmpty()) return;
+        SSTable table = SSTable.write(nextTableFile(), memtable.entrySet().iterator(), memtable.size());
+        tables.add(0, table);
+        memtable = new TreeMap<>();
+        memtableBytes = 0;
+        compactIfNeeded();
+    }
+
+    /**
+     * Merges the first run of {@link #TIER_WIDTH} or more adjacent tables that fall in the same
+     * size tier. Only adjacent tables are merged, so newer versions still shadow older ones.
+     */
+    private void compactIfNeeded() throws IOException {
+        int runStart = 0;
+        for (int i = 1; i <= tables.size(); i++) {
+            if (i < tables.size() && tier(tables.get(i)) == tier(tables.get(runStart))) continue;
+
+            if (i - runStart >= TIER_WIDTH) {
+                merge(runStart, i);
+                compactIfNeeded(); // the merged table may complete the next tier
+                return;
+            }
+            runStart = i;
+        }
+    }
+
+    private void merge(int from, int to) throws IOException {
+        List<SSTable> run = new ArrayList<>(tables.subList(from, to));
+        boolean includesOldest = to == tables.size();
+
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        long entries = 0;
+        for (SSTable table : run) {
+            sources.add(table.iterator(null));
+            entries += table.entries();
+        }
+        Iterator<Map.Entry<String, byte[]>> merged = new MergingIterator(sources);
+        if (includesOldest) {
+            // Nothing older is left for a removal marker to hide
+            merged = new FilteringIterator(merged);
+        }
+
+        SSTable result = SSTable.write(nextTableFile(), merged, entries);
+        tables.subList(from, to).clear();
+        tables.add(from, result);
+        for (SSTable table : run) {
+            table.close();
+            table.file().delete();
+        }
+    }
+
+    // Size tier: 0 up to one memtable, then each tier four times larger than the previous
+    private int tier(SSTable table) {
+        long units = Math.max(1, table.sizeOnDisk() / Math.max(1, memtableLimitBytes));
+        return (63 - Long.numberOfLeadingZeros(units)) / 2;
+    }
+
+    private Iterator<Map.Entry<String, byte[]>> mergedIterator(String afterId) {
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        sources.add((afterId == null ? memtable : memtable.tailMap(afterId, false)).entrySet().iterator());
+        for (SSTable table : tables) {
+            sources.add(table.iterator(afterId));
+        }
+        return new MergingIterator(sources);
+    }
+
+    private File nextTableFile() {
+        return new File(directory, TABLE_PREFIX + String.format("%012d", nextTableId++) + TABLE_SUFFIX);
+    }
+
+    private void deleteTableFiles() {
+        File[] files = directory.listFiles(file -> file.getName().startsWith(TABLE_PREFIX));
+        if (files == null) return;
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Merges sorted sources into one sorted stream. Sources are ordered newest first; when
+     * several hold the same id only the newest entry is returned.
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+        private Map.Entry<String, byte[]> next;
+
+        private static class Head implements Comparable<Head> {
+            final Iterator<Map.Entry<String, byte[]>> source;
+            final int rank;
+            Map.Entry<String, byte[]> entry;
+
+            Head(Iterator<Map.Entry<String, byte[]>> source, int rank) {
+                this.source = source;
+                this.rank = rank;
+                this.entry = source.next();
+            }
+
+            @Override
+            public int compareTo(Head other) {
+                int cmp = entry.getKey().compareTo(other.entry.getKey());
+                return cmp != 0 ? cmp : Integer.compare(rank, other.rank);
+            }
+        }
+
+        MergingIterator(List<Iterator<Map.Entry<String, byte[]>>> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).hasNext()) {
+                    heads.add(new Head(sources.get(i), i));
+                }
+            }
+            next = advance();
+        }
+
+        private Map.Entry<String, byte[]> advance() {
+            Head head = heads.poll();
+            if (head == null) return null;
+            Map.Entry<String, byte[]> result = head.entry;
+            requeue(head);
+            // Drop the shadowed versions of the same id held by older sources
+            while (!heads.isEmpty() && heads.peek().entry.getKey().equals(result.getKey())) {
+                requeue(heads.poll());
+            }
+            return result;
+        }
+
+        private void requeue(Head head) {
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                heads.add(head);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (next == null) throw new NoSuchElementException();
+            Map.Entry<String, byte[]> current = next;
+            next = advance();
+            return current;
+        }
+    }
+
+    // Skips removal markers
+    private static class FilteringIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private final Iterator<Map.Entry<String, byte[]>> source;
+        private Map.Entry<String, byte[]> next;
+
+        FilteringIterator(Iterator<Map.Entry<String, byte[]>> source) {
+            this.source = source;
+            this.next = advance();
+        }
+
+        private Map.Entry<String, byte[]> advance() {
+            while (source.hasNext()) {
+                Map.Entry<String, byte[]> entry = source.next();
+                if (entry.getValue() != SSTable.TOMBSTONE) return entry;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (next == null) throw new NoSuchElementException();
+            Map.Entry<String, byte[]> current = next;
+            next = advance();
+            return current;
+        }
+    }
+}
@@ -23,11 +23,41 @@ public class Main {
         File certFile = extractResourceToTempFile(certResourcePath);
         File keyFile = extractResourceToTempFile(keyResourcePath);
 
-        // Initialize storage
-        StorageService storage = new StorageService("data/wal.log", "snapshots");
+        // wal.maxBatchSize, wal.maxBatchDelayMs and wal.asyncSyncIntervalMs tune group commit
+        WAL wal = new WAL("data/wal.log", 5, 3,
+                (int) setting(config, "wal.maxBatchSize", WAL.DEFAULT_MAX_BATCH_SIZE),
+                setting(config, "wal.maxBatchDelayMs", WAL.DEFAULT_MAX_BATCH_DELAY_MS),
+                setting(config, "wal.asyncSyncIntervalMs", WAL.DEFAULT_ASYNC_SYNC_INTERVAL_MS));
+
+        // Initialize storage; storage.engine=lsm keeps documents on disk instead of the heap
+        StorageService storage;
+        if ("lsm".equalsIgnoreCase(config.get("storage.engine"))) {
+            String storageDir = config.get("storage.dir") != null ? config.get("storage.dir") : "data/collections";
+            storage = new StorageService(wal, "snapshots", LsmDocumentStore.factory(new File(storageDir)));
+        } else {
+            storage = new StorageService(wal, "snapshots", collection -> new InMemoryDocumentStore());
+        }
         storage.createIndex("users", "name");
         storage.createIndex("products", "category");
 
+        // durability.<collection>=sync|group|async|none sets how that collection's inserts are logged
+        for (String key : config.keysWithPrefix("durability.")) {
+            String collection = key.substring("durability.".length());
+            storage.setDurability(collection, Durability.parse(config.get(key)));
+            System.out.println("Durability for " + collection + ": " + storage.getDurability(collection));
+        }
+
+        // query.parallelism caps the threads one full scan may use; every processor by default
+        String parallelism = config.get("query.parallelism");
+        if (parallelism != null) {
+            try {
+                storage.setScanParallelism(Integer.parseInt(parallelism.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("query.parallelism must be a whole number: " + parallelism.trim());
+            }
+        }
+        System.out.println("Scan parallelism: " + storage.getScanParallelism() + " thread(s) per query");
+
         // Schedule periodic snapshots
         var scheduler = Executors.newSingleThreadScheduledExecutor();
         scheduler.scheduleAtFixedRate(() -> {
@@ -39,6 +69,17 @@ public class Main {
             }
         }, 5, 5, TimeUnit.MINUTES);
 
+        // Report the TTL sweeper once a minute while it has anything to do
+        ExpiryManager expiry = storage.getExpiryManager();
+        long[] lastExpiredTotal = {0};
+        scheduler.scheduleAtFixedRate(() -> {
+            long total = expiry.getExpiredTotal();
+            if (total == lastExpiredTotal[0] && expiry.getBacklog() == 0) return;
+            lastExpiredTotal[0] = total;
+            System.out.printf("TTL: %d expired in total, %.1f/s at the last sweep, %d overdue%n",
+                    total, expiry.getExpiredPerSecond(), expiry.getBacklog());
+        }, 1, 1, TimeUnit.MINUTES);
+
         // Secure gRPC server with TLS and token auth
         Server server = NettyServerBuilder.forPort(50051)
                 .useTransportSecurity(certFile, keyFile)
@@ -57,12 +98,28 @@ public class Main {
                 System.err.println("Final snapshot failed: " + e.getMessage());
             }
             scheduler.shutdown();
+            try {
+                storage.close();
+            } catch (IOException e) {
+                System.err.println("Storage shutdown failed: " + e.getMessage());
+            }
             server.shutdown();
         }));
 
         server.awaitTermination();
     }
 
+    // A whole-number setting, or the default when it is not set
+    private static long setting(ConfigLoader config, String key, long defaultValue) {
+        String value = config.get(key);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a whole number: " + value.trim());
+        }
+    }
+
     // Utility to extract classpath resource to a temp file (needed by Netty)
     private static File extractResourceToTempFile(String resourcePath) throws IOException {
         try (InputStream input = Main.class.getClassLoader().getResourceAsStream(resourcePath)) {
@@ -0,0 +1,123 @@
+package baas.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Spreads the per-document work of a full scan over a shared pool of threads. The calling
+ * thread, which holds the collection's read lock, reads the store in id order and hands out
+ * consecutive runs of {@link #CHUNK} documents; each run is folded into a partial result of its
+ * own, and the partials are combined in id order, so callers get what a sequential scan would
+ * give them. Workers only see documents the caller has already read, never the store itself.
+ *
+ * <p>One query keeps at most {@code parallelism} runs in flight, which bounds the threads it
+ * occupies and the partial results it holds, and it waits for all of them before returning.
+ * Small collections are scanned on the calling thread.
+ */
+final class ParallelScan {
+    // Documents per task: enough to amortize the hand-off, few enough to balance the threads
+    static final int CHUNK = 4096;
+    static final int MIN_DOCUMENTS = 4 * CHUNK;
+
+    private final ForkJoinPool pool;
+    private volatile int parallelism;
+
+    ParallelScan(int threads) {
+        this.pool = new ForkJoinPool(threads);
+        this.parallelism = threads;
+    }
+
+    /**
+     * Caps the runs one query keeps in flight; 1 scans on the calling thread.
+     */
+    void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+        this.parallelism = Math.min(parallelism, pool.getParallelism());
+    }
+
+    int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Threads a scan of this many documents would use.
+     */
+    int threadsFor(long documents) {
+        return documents < MIN_DOCUMENTS ? 1 : parallelism;
+    }
+
+    /**
+     * Folds every entry of the source into a result.
+     * @param create      a new, empty partial result
+     * @param accumulate  adds one entry to a partial result; called on pool threads
+     * @param combine     adds the second partial, which covers later ids, to the first
+     */
+    <A> A scan(long documents, Iterator<Map.Entry<String, Map<String, Object>>> source, Supplier<A> create,
+               BiConsumer<A, Map.Entry<String, Map<String, Object>>> accumulate, BinaryOperator<A> combine) {
+        int threads = threadsFor(documents);
+        A result = create.get();
+        if (threads == 1) {
+            while (source.hasNext()) {
+                accumulate.accept(result, source.next());
+            }
+            return result;
+        }
+
+        Deque<CompletableFuture<A>> pending = new ArrayDeque<>();
+        boolean completed = false;
+        try {
+            while (source.hasNext()) {
+                List<Map.Entry<String, Map<String, Object>>> chunk = new ArrayList<>(CHUNK);
+                while (chunk.size() < CHUNK && source.hasNext()) {
+                    chunk.add(source.next());
+                }
+                if (pending.size() >= threads) {
+                    result = combine.apply(result, await(pending.poll()));
+                }
+                pending.add(CompletableFuture.supplyAsync(() -> {
+                    A partial = create.get();
+                    for (Map.Entry<String, Map<String, Object>> entry : chunk) {
+                        accumulate.accept(partial, entry);
+                    }
+                    return partial;
+                }, pool));
+            }
+            while (!pending.isEmpty()) {
+                result = combine.apply(result, await(pending.poll()));
+            }
+            completed = true;
+            return result;
+        } finally {
+            if (!completed) {
+                // Let the runs still in flight finish, so none reads documents after the lock is released
+                for (CompletableFuture<A> future : pending) {
+                    future.handle((partial, failure) -> null).join();
+                }
+            }
+        }
+    }
+
+    private static <A> A await(CompletableFuture<A> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,89 @@
+package baas.core;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Position in a query's results, just after the last document of a page: that document's sort
+ * value and id. Results are ordered by the sort field, documents without the field before all
+ * others when ascending and after them when descending, and then by id, so a position stays
+ * meaningful while documents are inserted or removed. Clients see it as an opaque token that
+ * is only valid for the same sort.
+ */
+public final class QueryCursor {
+    final String sortField;     // null when the query has no sort, ordering by id alone
+    final boolean ascending;
+    final boolean present;      // whether the document had the sort field
+    final Object value;
+    final String id;
+
+    QueryCursor(String sortField, boolean ascending, boolean present, Object value, String id) {
+        this.sortField = sortField;
+        this.ascending = ascending;
+        this.present = present;
+        this.value = value;
+        this.id = id;
+    }
+
+    static QueryCursor after(QuerySpec spec, String id, Map<String, Object> document) {
+        Object value = spec.sortField != null ? FieldPath.resolve(document, spec.sortField) : FieldPath.ABSENT;
+        boolean present = value != FieldPath.ABSENT;
+        return new QueryCursor(spec.sortField, spec.ascending, present, present ? value : null, id);
+    }
+
+    /**
+     * Compares a document's position with this one in the query's order.
+     * @return a positive number if the document comes after the cursor
+     */
+    int compareTo(String documentId, Map<String, Object> document) {
+        if (sortField != null) {
+            Object documentValue = FieldPath.resolve(document, sortField);
+            boolean documentPresent = documentValue != FieldPath.ABSENT;
+            int cmp = documentPresent != present ? Boolean.compare(documentPresent, present)
+                    : documentPresent ? ValueComparator.INSTANCE.compare(documentValue, value) : 0;
+            if (cmp != 0) return ascending ? cmp : -cmp;
+        }
+        return documentId.compareTo(id);
+    }
+
+    public String encode() {
+        JSONArray token = new JSONArray()
+                .put(sortField != null ? sortField : JSONObject.NULL)
+                .put(ascending)
+                .put(present)
+                .put(value != null ? JSONObject.wrap(value) : JSONObject.NULL)
+                .put(id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token is malformed or was issued for another sort
+     */
+    public static QueryCursor decode(String token, QuerySpec spec) {
+        QueryCursor cursor;
+        try {
+            JSONArray fields = new JSONArray(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+            Object value = fields.get(3);
+            if (value == JSONObject.NULL) {
+                value = null;
+            } else if (value instanceof JSONObject) {
+                value = ((JSONObject) value).toMap();
+            } else if (value instanceof JSONArray) {
+                value = ((JSONArray) value).toList();
+            }
+            cursor = new QueryCursor(fields.isNull(0) ? null : fields.getString(0), fields.getBoolean(1),
+                    fields.getBoolean(2), value, fields.getString(4));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+        if (!Objects.equals(cursor.sortField, spec.sortField) || (cursor.sortField != null && cursor.ascending != spec.ascending)) {
+            throw new IllegalArgumentException("Cursor was issued for a different sort");
+        }
+        return cursor;
+    }
+}
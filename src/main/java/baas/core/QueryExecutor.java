@@ -7,6 +7,9 @@ import baas.core.QueryParser.ParsedQuery;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.Iterator;
+import java.util.function.Consumer;
+
 public class QueryExecutor {
     private final DatabaseServiceGrpc.DatabaseServiceBlockingStub stub;
 
@@ -28,38 +31,52 @@ public class QueryExecutor {
                 return new JSONObject(getResponse.getDocument());
 
             case FILTER:
-                QueryResponse queryResponse = stub.query(QueryRequest.newBuilder()
-                        .setCollection(query.collection)
-                        .setField(query.field)
-                        .setValue(query.value.toString())
-                        .build());
-
-                if (!queryResponse.getSuccess()) {
-                    throw new RuntimeException("Query failed: " + queryResponse.getCode() + " - " + queryResponse.getError());
-                }
-
+            case COMPOUND:
                 JSONArray results = new JSONArray();
-                for (String doc : queryResponse.getDocumentsList()) {
-                    results.put(new JSONObject(doc));
-                }
+                stream(query, results::put);
                 return new JSONObject().put("results", results);
 
+            default:
+                throw new IllegalArgumentException("Unsupported query type: " + query.type);
+        }
+    }
+
+    /**
+     * Runs a FILTER or COMPOUND query as a stream, passing each matching document to
+     * {@code sink} as its batch arrives instead of collecting the whole result first.
+     */
+    public void stream(ParsedQuery query, Consumer<JSONObject> sink) {
+        JSONObject filter;
+        switch (query.type) {
+            case FILTER:
+                filter = new JSONObject().put(query.field, query.value);
+                break;
+
             case COMPOUND:
-                JSONArray compoundResults = new JSONArray();
+                // One request; the server intersects or unions the conditions' index entries
+                JSONArray conditions = new JSONArray();
                 for (ParsedQuery sub : query.subqueries) {
-                    JSONObject subResult = execute(sub);
-                    if (subResult.has("results")) {
-                        for (Object obj : subResult.getJSONArray("results")) {
-                            compoundResults.put(obj);
-                        }
-                    } else {
-                        compoundResults.put(subResult);
-                    }
+                    conditions.put(new JSONObject().put(sub.field, sub.value));
                 }
-                return new JSONObject().put("results", compoundResults);
+                filter = new JSONObject().put(query.operator, conditions);
+                break;
 
             default:
-                throw new IllegalArgumentException("Unsupported query type: " + query.type);
+                throw new IllegalArgumentException("Query type cannot be streamed: " + query.type);
+        }
+
+        Iterator<QueryBatch> batches = stub.streamQuery(StreamQueryRequest.newBuilder()
+                .setCollection(query.collection)
+                .setFilter(filter.toString())
+                .build());
+        while (batches.hasNext()) {
+            QueryBatch batch = batches.next();
+            if (!batch.getSuccess()) {
+                throw new RuntimeException("Query failed: " + batch.getCode() + " - " + batch.getError());
+            }
+            for (String doc : batch.getDocumentsList()) {
+                sink.accept(new JSONObject(doc));
+            }
         }
     }
 }
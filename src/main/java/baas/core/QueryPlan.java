@@ -0,0 +1,139 @@
+package baas.core;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * How {@link StorageService#executeQuery} reads a query's documents, as chosen by
+ * {@link QueryPlanner}: the access path, whether it already yields the requested order, and
+ * whether it yields exactly the matching documents so that paging can stop early.
+ */
+final class QueryPlan {
+    enum Access {
+        FULL_SCAN,      // every document in id order
+        INDEX_LOOKUP,   // an index probe for some of the conditions
+        INDEX_ORDER,    // every document in the order of the sort field's index
+        INDEX_MERGE     // ids combined from several indexes for an $or or nested filter
+    }
+
+    final Access access;
+    final String index;
+    final Filter filter;
+    final boolean ordered;
+    final boolean exact;
+    final long estimatedRows;
+    final double cost;
+    // Id groups in access order; null for a full scan
+    private final Supplier<Collection<? extends Set<String>>> idGroups;
+    List<QueryPlan> alternatives = List.of();
+    String scanAfter;   // id a full scan starts after, when resuming from a cursor
+
+    QueryPlan(Access access, String index, Filter filter, boolean ordered, boolean exact,
+              long estimatedRows, double cost, Supplier<Collection<? extends Set<String>>> idGroups) {
+        this.access = access;
+        this.index = index;
+        this.filter = filter;
+        this.ordered = ordered;
+        this.exact = exact;
+        this.estimatedRows = estimatedRows;
+        this.cost = cost;
+        this.idGroups = idGroups;
+    }
+
+    /**
+     * Documents in access order, not yet checked against the filter or for expiry.
+     * Caller holds the collection's read lock.
+     */
+    Iterator<Map.Entry<String, Map<String, Object>>> open(DocumentStore documents) {
+        if (idGroups == null) return documents.scan(scanAfter);
+
+        Iterator<? extends Set<String>> groups = idGroups.get().iterator();
+        return new Iterator<>() {
+            private Iterator<String> ids = Collections.emptyIterator();
+            private Map.Entry<String, Map<String, Object>> next = advance();
+
+            private Map.Entry<String, Map<String, Object>> advance() {
+                while (true) {
+                    while (!ids.hasNext()) {
+                        if (!groups.hasNext()) return null;
+                        ids = groups.next().iterator();
+                    }
+                    String id = ids.next();
+                    Map<String, Object> document = documents.get(id);
+                    if (document != null) return new AbstractMap.SimpleImmutableEntry<>(id, document);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, Map<String, Object>> next() {
+                if (next == null) throw new NoSuchElementException();
+                Map.Entry<String, Map<String, Object>> current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Number of documents the access path holds, which for an exact plan is the number of
+     * matches before expiry is taken into account.
+     */
+    long rawCount(DocumentStore documents) {
+        if (idGroups == null) return documents.size();
+        long count = 0;
+        for (Set<String> ids : idGroups.get()) {
+            count += ids.size();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(access.name());
+        if (index != null) text.append(" on ").append(index);
+        text.append(String.format(" (rows ~%d, cost ~%.0f)", estimatedRows, cost));
+        return text.toString();
+    }
+
+    /**
+     * @param threads number of threads the documents are read with
+     */
+    String describe(QuerySpec spec, int documents, int threads) {
+        StringBuilder text = new StringBuilder();
+        text.append("plan: ").append(this).append('\n');
+        text.append("  filter: ").append(filter == null ? "none" : filter.toString())
+                .append(filter != null && exact ? " (answered by the index)" : "").append('\n');
+        text.append("  documents: ").append(documents).append('\n');
+        if (threads > 1) {
+            text.append("  scan: in parallel on ").append(threads).append(" threads\n");
+        }
+        if (spec.sortField != null) {
+            text.append("  order: ").append(spec.sortField).append(spec.ascending ? " ASC" : " DESC")
+                    .append(ordered ? " from the access path"
+                            : spec.limit > 0 ? " keeping the first " + ((long) spec.skip + spec.limit) + " in a heap"
+                            : " sorted in memory").append('\n');
+        }
+        if (spec.limit > 0) {
+            text.append("  page: skip ").append(spec.skip).append(", limit ").append(spec.limit)
+                    .append(ordered && (exact || spec.after != null) ? ", stops once the page is full" : ", reads every match")
+                    .append('\n');
+        }
+        if (spec.after != null) {
+            boolean seeks = scanAfter != null || access == Access.INDEX_ORDER;
+            text.append("  cursor: ").append(seeks ? "seeks to the cursor position" : "skips matches up to the cursor")
+                    .append('\n');
+        }
+        if (!alternatives.isEmpty()) {
+            text.append("  considered:\n");
+            for (QueryPlan alternative : alternatives) {
+                text.append("    ").append(alternative).append('\n');
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,356 @@
+package baas.core;
+
+import java.util.*;
+
+/**
+ * Chooses how a query reads its documents. The candidates are a full scan, a probe of each
+ * index that covers some of the filter's top-level conditions, a walk of the sort field's
+ * index, and for $or / nested filters a merge of several indexes' ids. Each is costed from
+ * the index statistics — exact posting sizes for equality, the histogram for ranges — with
+ * the cost of sorting added when the path does not produce the requested order, and the
+ * cheapest wins. A path that yields exactly the matching documents in the requested order
+ * lets the executor stop once the page is full.
+ */
+final class QueryPlanner {
+    // Relative costs per document: reading in id order, fetching by id, and sorting
+    private static final double SCAN_COST = 1.0;
+    private static final double LOOKUP_COST = 1.5;
+    private static final double SORT_COST = 0.1;
+
+    private QueryPlanner() {
+    }
+
+    /**
+     * Caller holds the collection's read lock for as long as the plan is used.
+     */
+    static QueryPlan plan(CollectionData data, QuerySpec spec) {
+        long documents = data.documents.size();
+        Filter filter = spec.filter;
+        List<Condition> conditions = new ArrayList<>();
+        boolean conjunctive = collectConditions(filter, conditions);
+        long page = spec.limit > 0 ? (long) spec.skip + spec.limit : Long.MAX_VALUE;
+
+        List<QueryPlan> plans = new ArrayList<>();
+        long bestEstimate = documents;
+
+        // Single-field indexes on the top-level conditions
+        for (Condition condition : conditions) {
+            SecondaryIndex index = data.indexes.get(condition.field);
+            if (index == null || !(condition.isEquality() || condition.isIn() || condition.isRange())) continue;
+
+            long rows;
+            Collection<? extends Set<String>> groups;
+            if (!condition.isRange()) {
+                groups = lookup(index, condition);
+                rows = estimatedSize(groups);
+            } else {
+                rows = index.estimateRange(condition.lower, condition.lowerInclusive, condition.upper, condition.upperInclusive);
+                groups = null;
+            }
+            bestEstimate = Math.min(bestEstimate, rows);
+
+            // Range groups come in value order, which is only id order within one value
+            boolean ordered = spec.sortField == null ? condition.isEquality() : spec.sortField.equals(condition.field);
+            boolean exact = conjunctive && conditions.size() == 1;
+            boolean descending = spec.sortField != null && !spec.ascending;
+            Collection<? extends Set<String>> fixed = groups;
+            plans.add(new QueryPlan(QueryPlan.Access.INDEX_LOOKUP, condition.field + " [" + condition + "]",
+                    filter, ordered, exact, rows,
+                    visited(rows, page, ordered && exact) * LOOKUP_COST + sortCost(spec, ordered, rows),
+                    () -> inOrder(fixed != null ? fixed
+                            : index.range(condition.lower, condition.lowerInclusive, condition.upper, condition.upperInclusive),
+                            descending)));
+        }
+
+        // Compound indexes: equality on a leftmost prefix, then optionally a range
+        Map<String, Condition> equalities = new HashMap<>();
+        Map<String, Condition> ranges = new HashMap<>();
+        for (Condition condition : conditions) {
+            if (condition.isEquality()) {
+                equalities.putIfAbsent(condition.field, condition);
+            } else if (condition.isRange()) {
+                ranges.putIfAbsent(condition.field, condition);
+            }
+        }
+        for (CompoundIndex index : data.compoundIndexes.values()) {
+            List<String> fields = index.fields();
+            List<Object> prefix = new ArrayList<>();
+            int covered = 0;
+            boolean nullInPrefix = false;
+            while (prefix.size() < fields.size() && equalities.containsKey(fields.get(prefix.size()))) {
+                Object value = equalities.get(fields.get(prefix.size())).value;
+                nullInPrefix |= value == null;
+                prefix.add(value);
+                covered++;
+            }
+            Condition range = prefix.size() < fields.size() ? ranges.get(fields.get(prefix.size())) : null;
+            if (range != null) covered++;
+            if (covered == 0) continue;
+
+            // Counting stops once the probe is no better than the best estimate so far
+            Collection<? extends Set<String>> groups = index.probe(prefix, range);
+            long rows = 0;
+            for (Set<String> ids : groups) {
+                rows += ids.size();
+                if (rows > bestEstimate) break;
+            }
+            bestEstimate = Math.min(bestEstimate, rows);
+
+            // Each key is a group in id order, so the keys must be one per sort value: a single
+            // key, or a range on the sort field when it is the last field
+            boolean ordered = prefix.size() == fields.size()
+                    ? spec.sortField == null || fields.contains(spec.sortField)
+                    : range != null && prefix.size() == fields.size() - 1 && fields.get(prefix.size()).equals(spec.sortField);
+            // Missing fields are indexed as null, so a null in the prefix needs the filter
+            boolean exact = conjunctive && covered == conditions.size() && !nullInPrefix;
+            boolean descending = spec.sortField != null && !spec.ascending;
+            plans.add(new QueryPlan(QueryPlan.Access.INDEX_LOOKUP, fields + " [" + prefix + (range != null ? ", " + range : "") + "]",
+                    filter, ordered, exact, rows,
+                    visited(rows, page, ordered && exact) * LOOKUP_COST + sortCost(spec, ordered, rows),
+                    () -> inOrder(index.probe(prefix, range), descending)));
+        }
+
+        // Filters with $or or nested branches: merge the ids their indexes produce
+        if (!conjunctive) {
+            Set<String> merged = candidates(data, filter);
+            if (merged != null) {
+                long rows = merged.size();
+                bestEstimate = Math.min(bestEstimate, rows);
+                boolean ordered = spec.sortField == null;
+                plans.add(new QueryPlan(QueryPlan.Access.INDEX_MERGE, "ids of " + filter, filter, ordered, false, rows,
+                        rows * LOOKUP_COST + sortCost(spec, ordered, rows),
+                        () -> {
+                            String[] ids = merged.toArray(new String[0]);
+                            Arrays.sort(ids);
+                            return List.of(new LinkedHashSet<>(Arrays.asList(ids)));
+                        }));
+            }
+        }
+
+        // Every document in the order of the sort field's index
+        SecondaryIndex sortIndex = spec.sortField != null ? data.indexes.get(spec.sortField) : null;
+        if (sortIndex != null) {
+            boolean exact = filter == null;
+            long rows = exact ? documents : bestEstimate;
+            plans.add(new QueryPlan(QueryPlan.Access.INDEX_ORDER, spec.sortField + (spec.ascending ? " ASC" : " DESC"),
+                    filter, true, exact, rows,
+                    (exact ? visited(documents, page, true) : documents) * LOOKUP_COST,
+                    () -> spec.after != null ? sortIndex.orderedAfter(spec.after) : sortIndex.ordered(spec.ascending)));
+        }
+
+        // The full scan is always possible and is listed last, so an index wins a tie
+        boolean scanOrdered = spec.sortField == null;
+        boolean scanExact = filter == null;
+        long scanRows = scanExact ? documents : bestEstimate;
+        QueryPlan scan = new QueryPlan(QueryPlan.Access.FULL_SCAN, null, filter, scanOrdered, scanExact, scanRows,
+                (scanOrdered && scanExact ? visited(documents, page, true) : documents) * SCAN_COST
+                        + sortCost(spec, scanOrdered, scanRows),
+                null);
+        if (scanOrdered && spec.after != null) scan.scanAfter = spec.after.id;
+        plans.add(scan);
+
+        QueryPlan best = plans.get(0);
+        for (QueryPlan plan : plans) {
+            if (plan.cost < best.cost) best = plan;
+        }
+        List<QueryPlan> alternatives = new ArrayList<>(plans);
+        alternatives.remove(best);
+        best.alternatives = alternatives;
+        return best;
+    }
+
+    /**
+     * Adds the conditions that every match must satisfy: the filter itself or the direct
+     * conditions of a top-level AND.
+     * @return true if the filter is nothing but those conditions
+     */
+    private static boolean collectConditions(Filter filter, List<Condition> conditions) {
+        if (filter == null) return true;
+        if (filter.kind == Filter.Kind.CONDITION) {
+            conditions.add(filter.condition);
+            return true;
+        }
+        if (filter.kind != Filter.Kind.AND) return false;
+        boolean conjunctive = true;
+        for (Filter child : filter.children) {
+            if (child.kind == Filter.Kind.CONDITION) {
+                conditions.add(child.condition);
+            } else {
+                conjunctive = false;
+            }
+        }
+        return conjunctive;
+    }
+
+    // Documents an ordered path reads: it stops at the end of the page only if it is exact
+    private static long visited(long rows, long page, boolean canStop) {
+        return canStop ? Math.min(rows, page) : rows;
+    }
+
+    // A full sort, or a bounded heap of the page when there is a limit
+    private static double sortCost(QuerySpec spec, boolean ordered, long rows) {
+        if (ordered || spec.sortField == null || rows < 2) return 0;
+        long kept = spec.limit > 0 ? Math.min(rows, (long) spec.skip + spec.limit) : rows;
+        return rows * (Math.log(Math.max(kept, 2)) / Math.log(2)) * SORT_COST;
+    }
+
+    // Index order is ascending; a descending sort walks the groups backwards
+    private static Collection<? extends Set<String>> inOrder(Collection<? extends Set<String>> groups, boolean descending) {
+        if (!descending) return groups;
+        List<Set<String>> reversed = new ArrayList<>(groups);
+        Collections.reverse(reversed);
+        return reversed;
+    }
+
+    /**
+     * A superset of the ids matching the filter, read from the indexes; caller holds the read lock.
+     * @return the ids, or null if the filter cannot be answered without a scan
+     */
+    static Set<String> candidates(CollectionData data, Filter filter) {
+        switch (filter.kind) {
+            case CONDITION:
+                return union(probeBestIndex(data, List.of(filter.condition)));
+
+            case NOT:
+                return null;
+
+            case OR: {
+                if (filter.children.isEmpty()) return new HashSet<>();
+                Set<String> result = new HashSet<>();
+                for (Filter child : filter.children) {
+                    Set<String> ids = candidates(data, child);
+                    if (ids == null) return null;
+                    result.addAll(ids);
+                }
+                return result;
+            }
+
+            default: {
+                // Each source is a group of id sets whose union covers the AND
+                List<Collection<? extends Set<String>>> sources = new ArrayList<>();
+                List<Condition> conditions = new ArrayList<>();
+                List<Filter> nested = new ArrayList<>();
+                for (Filter child : filter.children) {
+                    if (child.kind == Filter.Kind.CONDITION) {
+                        conditions.add(child.condition);
+                    } else {
+                        nested.add(child);
+                    }
+                }
+                if (!conditions.isEmpty()) {
+                    Collection<? extends Set<String>> probed = probeBestIndex(data, conditions);
+                    if (probed != null) sources.add(probed);
+                    // Equality postings are single sets, cheap to test membership against
+                    for (Condition condition : conditions) {
+                        SecondaryIndex index = data.indexes.get(condition.field);
+                        if (index != null && condition.isEquality()) {
+                            Set<String> ids = index.get(condition.value);
+                            sources.add(ids != null ? List.of(ids) : List.of());
+                        }
+                    }
+                }
+                // Evaluating a nested branch means building its whole candidate set, so it is
+                // only worth it when no condition of this AND could narrow the candidates
+                if (sources.isEmpty()) {
+                    for (Filter child : nested) {
+                        Set<String> ids = candidates(data, child);
+                        if (ids != null) sources.add(List.of(ids));
+                    }
+                }
+                if (sources.isEmpty()) return null;
+
+                sources.sort(Comparator.comparingLong(QueryPlanner::estimatedSize));
+                Set<String> result = union(sources.get(0));
+                for (Collection<? extends Set<String>> source : sources.subList(1, sources.size())) {
+                    if (result.isEmpty()) break;
+                    // A range spans many sets; its condition is re-checked on the documents instead
+                    if (source.size() != 1) continue;
+                    Set<String> ids = source.iterator().next();
+                    result.removeIf(id -> !ids.contains(id));
+                }
+                return result;
+            }
+        }
+    }
+
+    private static Set<String> union(Collection<? extends Set<String>> sets) {
+        if (sets == null) return null;
+        Set<String> result = new HashSet<>((int) Math.min(Integer.MAX_VALUE / 2, estimatedSize(sets) * 2));
+        for (Set<String> ids : sets) {
+            result.addAll(ids);
+        }
+        return result;
+    }
+
+    private static long estimatedSize(Collection<? extends Set<String>> sets) {
+        long size = 0;
+        for (Set<String> ids : sets) {
+            size += ids.size();
+        }
+        return size;
+    }
+
+    // Ids of an equality or IN condition, one group per value in value order
+    private static List<Set<String>> lookup(SecondaryIndex index, Condition condition) {
+        List<Set<String>> groups = new ArrayList<>();
+        for (Object value : condition.isIn() ? condition.values : Collections.singletonList(condition.value)) {
+            Set<String> ids = index.get(value);
+            if (ids != null) groups.add(ids);
+        }
+        return groups;
+    }
+
+    /**
+     * Probes the index that covers the most conditions; caller holds the read lock.
+     * @return the candidate id sets, or null if no index covers any condition
+     */
+    private static Collection<? extends Set<String>> probeBestIndex(CollectionData data, List<Condition> conditions) {
+        Map<String, Condition> equalities = new HashMap<>();
+        Map<String, Condition> ranges = new HashMap<>();
+        for (Condition condition : conditions) {
+            if (condition.isEquality()) {
+                equalities.putIfAbsent(condition.field, condition);
+            } else if (condition.isRange()) {
+                ranges.putIfAbsent(condition.field, condition);
+            }
+        }
+
+        CompoundIndex bestCompound = null;
+        int bestPrefix = 0;
+        int bestScore = 0;
+        for (CompoundIndex index : data.compoundIndexes.values()) {
+            List<String> fields = index.fields();
+            int prefix = 0;
+            while (prefix < fields.size() && equalities.containsKey(fields.get(prefix))) {
+                prefix++;
+            }
+            int score = prefix + (prefix < fields.size() && ranges.containsKey(fields.get(prefix)) ? 1 : 0);
+            if (score > bestScore) {
+                bestCompound = index;
+                bestPrefix = prefix;
+                bestScore = score;
+            }
+        }
+
+        // A single-field index covers one condition, so it only wins when no compound does
+        if (bestCompound == null) {
+            for (Condition condition : conditions) {
+                SecondaryIndex index = data.indexes.get(condition.field);
+                if (index == null || !(condition.isEquality() || condition.isIn() || condition.isRange())) continue;
+                if (!condition.isRange()) {
+                    return lookup(index, condition);
+                }
+                return index.range(condition.lower, condition.lowerInclusive, condition.upper, condition.upperInclusive);
+            }
+            return null;
+        }
+
+        List<String> fields = bestCompound.fields();
+        List<Object> prefix = new ArrayList<>(bestPrefix);
+        for (int i = 0; i < bestPrefix; i++) {
+            prefix.add(equalities.get(fields.get(i)).value);
+        }
+        Condition range = bestPrefix < fields.size() ? ranges.get(fields.get(bestPrefix)) : null;
+        return bestCompound.probe(prefix, range);
+    }
+}
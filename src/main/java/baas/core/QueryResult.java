@@ -0,0 +1,25 @@
+package baas.core;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of a query's results together with the size of the whole result. Pages that
+ * resume from a cursor stop reading at the end of the page and report a total of -1.
+ */
+public class QueryResult {
+    public final List<Map<String, Object>> documents;
+    public final int totalCount;
+    public final boolean hasMore;
+    public final String plan;
+    public final QueryCursor nextCursor;    // where the next page starts; null on the last page
+
+    public QueryResult(List<Map<String, Object>> documents, int totalCount, boolean hasMore, String plan,
+                       QueryCursor nextCursor) {
+        this.documents = documents;
+        this.totalCount = totalCount;
+        this.hasMore = hasMore;
+        this.plan = plan;
+        this.nextCursor = nextCursor;
+    }
+}
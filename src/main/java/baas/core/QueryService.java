@@ -12,6 +12,7 @@ import org.json.JSONObject;
 
 import javax.net.ssl.SSLException;
 import java.io.File;
+import java.util.function.Consumer;
 
 public class QueryService {
     private final ManagedChannel channel;
@@ -41,6 +42,11 @@ public class QueryService {
         return executor.execute(baas.core.QueryParser.parse(queryJson));
     }
 
+    // Passes each matching document to the sink as it arrives; filter and compound queries only
+    public void streamQuery(String queryJson, Consumer<JSONObject> sink) {
+        executor.stream(baas.core.QueryParser.parse(queryJson), sink);
+    }
+
     public void shutdown() {
         channel.shutdown();
     }
@@ -0,0 +1,22 @@
+package baas.core;
+
+import java.util.List;
+
+/**
+ * What a query asks for, independent of how it is executed: which documents, in what order,
+ * which page of them and which of their fields. {@link QueryPlanner} decides how. Documents
+ * are returned in sort field order, ties and unsorted queries in id order.
+ */
+public class QuerySpec {
+    public Filter filter;          // null matches every document
+    public String sortField;       // null keeps the order the access path produces
+    public boolean ascending = true;
+    public int skip;
+    public int limit;              // 0 for no limit
+    public List<String> fields;    // null or empty returns whole documents
+    public QueryCursor after;      // resume after this position; skip then counts from it
+
+    public QuerySpec(Filter filter) {
+        this.filter = filter;
+    }
+}
@@ -0,0 +1,18 @@
+package baas.core;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The matches of a query, read a batch at a time by {@link StorageService#streamQuery}.
+ * The collection is locked only while a batch is read, so writes made between batches may
+ * or may not be seen by later ones.
+ */
+public interface QueryStream {
+
+    /**
+     * @return up to {@code maxDocuments} further matches, possibly none, or {@code null} once
+     * every match has been returned
+     */
+    List<Map<String, Object>> next(int maxDocuments);
+}
@@ -0,0 +1,320 @@
+package baas.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Immutable sorted table of encoded documents, written by {@link LsmDocumentStore}.
+ * <pre>
+ * table   := block* index bloom trailer
+ * block   := (id:string valueLength:i32 value)*      (valueLength -1 marks a removed id)
+ * index   := count:varint (firstId:string offset:i64 length:i32)*
+ * bloom   := hashes:u8 words:varint word:i64*
+ * trailer := indexOffset:i64 indexLength:i32 bloomLength:i32 entries:i64 "BSST"
+ * </pre>
+ * Strings and varints use the {@link DocumentCodec} encoding. The block index and the bloom
+ * filter stay on the heap; blocks are fetched with positional reads, so any number of
+ * threads can read a table at once.
+ */
+final class SSTable implements Closeable {
+    // Returned by get() and iterators for removed ids; compared by identity
+    static final byte[] TOMBSTONE = new byte[0];
+
+    private static final byte[] MAGIC = {'B', 'S', 'S', 'T'};
+    private static final int TRAILER_SIZE = 8 + 4 + 4 + 8 + MAGIC.length;
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    private final File file;
+    private final FileChannel channel;
+    private final String[] firstIds;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long[] bloom;
+    private final int bloomHashes;
+    private final long entries;
+
+    private SSTable(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer trailer = read(channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            int indexLength = trailer.getInt();
+            int bloomLength = trailer.getInt();
+            this.entries = trailer.getLong();
+            byte[] magic = new byte[MAGIC.length];
+            trailer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a table file: " + file.getName());
+            }
+
+            ByteBuffer index = read(indexOffset, indexLength);
+            int blocks = DocumentCodec.readVarint(index);
+            this.firstIds = new String[blocks];
+            this.offsets = new long[blocks];
+            this.lengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstIds[i] = DocumentCodec.readString(index);
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+
+            ByteBuffer bloomBytes = read(indexOffset + indexLength, bloomLength);
+            this.bloomHashes = bloomBytes.get();
+            this.bloom = new long[DocumentCodec.readVarint(bloomBytes)];
+            for (int i = 0; i < bloom.length; i++) {
+                bloom[i] = bloomBytes.getLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static SSTable open(File file) throws IOException {
+        return new SSTable(file);
+    }
+
+    /**
+     * Writes the entries, which must be in id order, to a new table and opens it.
+     * {@link #TOMBSTONE} values are written as removal markers.
+     * @param expectedEntries upper bound on the number of entries, used to size the bloom filter
+     */
+    static SSTable write(File file, Iterator<Map.Entry<String, byte[]>> entries, long expectedEntries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        int bloomBits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, expectedEntries * BLOOM_BITS_PER_ENTRY));
+        long[] bloom = new long[(bloomBits + 63) / 64];
+        long count = 0;
+
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+             OutputStream out = new BufferedOutputStream(fileOut, 256 * 1024)) {
+            DocumentCodec.Writer block = new DocumentCodec.Writer(BLOCK_SIZE + 1024);
+            DocumentCodec.Writer index = new DocumentCodec.Writer(1024);
+            List<String> blockIds = new ArrayList<>();
+            long position = 0;
+            String firstId = null;
+
+            while (entries.hasNext()) {
+                Map.Entry<String, byte[]> entry = entries.next();
+                if (firstId == null) firstId = entry.getKey();
+                block.writeString(entry.getKey());
+                byte[] value = entry.getValue();
+                if (value == TOMBSTONE) {
+                    block.writeInt(-1);
+                } else {
+                    block.writeInt(value.length);
+                    block.writeBytes(value, 0, value.length);
+                }
+                addToBloom(bloom, BLOOM_HASHES, entry.getKey());
+                count++;
+
+                if (block.size() >= BLOCK_SIZE) {
+                    blockIds.add(firstId);
+                    index.writeString(firstId);
+                    index.writeLong(position);
+                    index.writeInt(block.size());
+                    out.write(block.array(), 0, block.size());
+                    position += block.size();
+                    block.reset();
+                    firstId = null;
+                }
+            }
+            if (block.size() > 0) {
+                blockIds.add(firstId);
+                index.writeString(firstId);
+                index.writeLong(position);
+                index.writeInt(block.size());
+                out.write(block.array(), 0, block.size());
+                position += block.size();
+            }
+
+            DocumentCodec.Writer indexWithCount = new DocumentCodec.Writer(index.size() + 8);
+            indexWithCount.writeVarint(blockIds.size());
+            indexWithCount.writeBytes(index.array(), 0, index.size());
+            out.write(indexWithCount.array(), 0, indexWithCount.size());
+
+            DocumentCodec.Writer bloomOut = new DocumentCodec.Writer(bloom.length * 8 + 8);
+            bloomOut.writeByte(BLOOM_HASHES);
+            bloomOut.writeVarint(bloom.length);
+            for (long word : bloom) {
+                bloomOut.writeLong(word);
+            }
+            out.write(bloomOut.array(), 0, bloomOut.size());
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(position)
+                    .putInt(indexWithCount.size())
+                    .putInt(bloomOut.size())
+                    .putLong(count)
+                    .put(MAGIC);
+            out.write(trailer.array());
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    /**
+     * @return the encoded document, {@link #TOMBSTONE} if the id was removed, or {@code null}
+     * if this table knows nothing about the id
+     */
+    byte[] get(String id) throws IOException {
+        if (!mightContain(id)) return null;
+        int block = blockFor(id);
+        if (block < 0) return null;
+
+        ByteBuffer data = readBlock(block);
+        while (data.hasRemaining()) {
+            String key = DocumentCodec.readString(data);
+            int length = data.getInt();
+            int cmp = key.compareTo(id);
+            if (cmp == 0) {
+                if (length < 0) return TOMBSTONE;
+                byte[] value = new byte[length];
+                data.get(value);
+                return value;
+            }
+            if (cmp > 0) return null;
+            if (length > 0) data.position(data.position() + length);
+        }
+        return null;
+    }
+
+    // Entries with ids greater than afterId (all entries when null), tombstones included
+    Iterator<Map.Entry<String, byte[]>> iterator(String afterId) {
+        int start = afterId == null ? 0 : Math.max(0, blockFor(afterId));
+        return new Iterator<>() {
+            private int block = start;
+            private ByteBuffer data;
+            private Map.Entry<String, byte[]> next = advance();
+
+            private Map.Entry<String, byte[]> advance() {
+                try {
+                    while (true) {
+                        if (data == null || !data.hasRemaining()) {
+                            if (block >= firstIds.length) return null;
+                            data = readBlock(block++);
+                        }
+                        String key = DocumentCodec.readString(data);
+                        int length = data.getInt();
+                        byte[] value = TOMBSTONE;
+                        if (length >= 0) {
+                            value = new byte[length];
+                            data.get(value);
+                        }
+                        if (afterId == null || key.compareTo(afterId) > 0) {
+                            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (next == null) throw new NoSuchElementException();
+                Map.Entry<String, byte[]> current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    long entries() {
+        return entries;
+    }
+
+    long sizeOnDisk() {
+        return file.length();
+    }
+
+    File file() {
+        return file;
+    }
+
+    // Index of the last block whose first id is not greater than id, or -1
+    private int blockFor(String id) {
+        int low = 0;
+        int high = firstIds.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firstIds[mid].compareTo(id) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private boolean mightContain(String id) {
+        long hash = hash(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long bits = (long) bloom.length * 64;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static void addToBloom(long[] bloom, int hashes, String id) {
+        long hash = hash(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long bits = (long) bloom.length * 64;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // FNV-1a over the chars, finished with the murmur3 mixer so both halves are usable
+    private static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+        return read(offsets[block], lengths[block]);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file.getName());
+            }
+        }
+        return buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,287 @@
+package baas.core;
+
+import java.util.*;
+
+/**
+ * Ordered index over one field of a collection: field value -> ids of the documents holding
+ * it, sorted by {@link ValueComparator}. Supports equality lookups, range scans and
+ * traversal in value order. Documents without the field are tracked separately so an
+ * ordered traversal can still return the whole collection. Guarded by the collection's lock.
+ * <p>For the query planner the index also keeps its entry count and an equi-depth histogram
+ * of its values, rebuilt on demand once a tenth of the entries have changed.
+ */
+final class SecondaryIndex {
+    private static final int HISTOGRAM_BUCKETS = 64;
+
+    private final String field;
+    private final NavigableMap<Object, NavigableSet<String>> postings = new TreeMap<>(ValueComparator.INSTANCE);
+    private final NavigableSet<String> missing = new TreeSet<>();
+    private long entries = 0;
+
+    // Built by readers under the read lock, so replaced as a whole and guarded by its own lock
+    private volatile Histogram histogram;
+    private long changesSinceHistogram = 0;
+
+    /**
+     * Bucket i holds the entries with values up to {@code bounds[i]}, {@code cumulative[i]}
+     * entries in total counting all earlier buckets.
+     */
+    private static final class Histogram {
+        final Object[] bounds;
+        final long[] cumulative;
+
+        Histogram(Object[] bounds, long[] cumulative) {
+            this.bounds = bounds;
+            this.cumulative = cumulative;
+        }
+    }
+
+    SecondaryIndex(String field) {
+        this.field = field;
+    }
+
+    String field() {
+        return field;
+    }
+
+    void add(String id, Map<String, Object> document) {
+        Object value = FieldPath.resolve(document, field);
+        if (value != FieldPath.ABSENT) {
+            if (postings.computeIfAbsent(value, k -> new TreeSet<>()).add(id)) {
+                entries++;
+                changesSinceHistogram++;
+            }
+        } else {
+            missing.add(id);
+        }
+    }
+
+    void remove(String id, Map<String, Object> document) {
+        Object value = FieldPath.resolve(document, field);
+        if (value == FieldPath.ABSENT) {
+            missing.remove(id);
+            return;
+        }
+        Set<String> ids = postings.get(value);
+        if (ids != null && ids.remove(id)) {
+            entries--;
+            changesSinceHistogram++;
+            // If no more documents have this value, remove the value entry
+            if (ids.isEmpty()) {
+                postings.remove(value);
+            }
+        }
+    }
+
+    void clear() {
+        postings.clear();
+        missing.clear();
+        entries = 0;
+        histogram = null;
+        changesSinceHistogram = 0;
+    }
+
+    // Documents that have the field
+    long entries() {
+        return entries;
+    }
+
+    long distinctValues() {
+        return postings.size();
+    }
+
+    /**
+     * Estimated number of entries in the range, from the histogram; same bounds as {@link #range}.
+     */
+    long estimateRange(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        if (entries == 0) return 0;
+        if (lower != null && upper != null && !ValueComparator.comparable(lower, upper)) return 0;
+        Histogram h = currentHistogram();
+        double from = position(h, lower != null ? lower : ValueComparator.startOfType(upper));
+        double to = position(h, upper != null ? upper : ValueComparator.endOfType(lower));
+        long estimate = Math.round(to - from);
+        // An exact value lookup is cheap and keeps a narrow range from being estimated at zero
+        if (lower != null && lowerInclusive) estimate = Math.max(estimate, sizeOf(lower));
+        if (upper != null && upperInclusive) estimate = Math.max(estimate, sizeOf(upper));
+        return Math.max(0, Math.min(entries, estimate));
+    }
+
+    private long sizeOf(Object value) {
+        Set<String> ids = postings.get(value);
+        return ids != null ? ids.size() : 0;
+    }
+
+    // Estimated number of entries with values below the given one, interpolating within its bucket
+    private static double position(Histogram h, Object value) {
+        int low = 0;
+        int high = h.bounds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ValueComparator.INSTANCE.compare(h.bounds[mid], value) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        long before = low == 0 ? 0 : h.cumulative[low - 1];
+        if (low == h.bounds.length) return before;
+        return before + (h.cumulative[low] - before) / 2.0;
+    }
+
+    private Histogram currentHistogram() {
+        Histogram h = histogram;
+        if (h != null && changesSinceHistogram <= Math.max(100, entries / 10)) return h;
+        synchronized (this) {
+            h = histogram;
+            if (h != null && changesSinceHistogram <= Math.max(100, entries / 10)) return h;
+            h = buildHistogram();
+            histogram = h;
+            changesSinceHistogram = 0;
+            return h;
+        }
+    }
+
+    private Histogram buildHistogram() {
+        long depth = Math.max(1, entries / HISTOGRAM_BUCKETS);
+        List<Object> bounds = new ArrayList<>();
+        List<Long> cumulative = new ArrayList<>();
+        long total = 0;
+        long inBucket = 0;
+        for (Map.Entry<Object, NavigableSet<String>> entry : postings.entrySet()) {
+            total += entry.getValue().size();
+            inBucket += entry.getValue().size();
+            if (inBucket >= depth) {
+                bounds.add(entry.getKey());
+                cumulative.add(total);
+                inBucket = 0;
+            }
+        }
+        if (inBucket > 0) {
+            bounds.add(postings.lastKey());
+            cumulative.add(total);
+        }
+        long[] counts = new long[cumulative.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = cumulative.get(i);
+        }
+        return new Histogram(bounds.toArray(), counts);
+    }
+
+    /**
+     * Read-only view of the values, null among them, with the ids holding each, in value order.
+     */
+    NavigableMap<Object, NavigableSet<String>> values() {
+        return Collections.unmodifiableNavigableMap(postings);
+    }
+
+    // Ids of the documents without the field
+    NavigableSet<String> missing() {
+        return Collections.unmodifiableNavigableSet(missing);
+    }
+
+    /**
+     * @return ids of the documents whose field equals the value, or null if there are none
+     */
+    Set<String> get(Object value) {
+        return postings.get(value);
+    }
+
+    /**
+     * Id sets of the values in the given range, in ascending value order. A null bound leaves
+     * that side open up to the end of the other bound's type, so {@code age > 25} never
+     * returns string or boolean values.
+     */
+    Collection<NavigableSet<String>> range(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        if (lower == null && upper == null) {
+            throw new IllegalArgumentException("A range needs at least one bound");
+        }
+        if (lower != null && upper != null && !ValueComparator.comparable(lower, upper)) {
+            return Collections.emptyList();
+        }
+        Object from = lower != null ? lower : ValueComparator.startOfType(upper);
+        Object to = upper != null ? upper : ValueComparator.endOfType(lower);
+        if (ValueComparator.INSTANCE.compare(from, to) > 0) {
+            return Collections.emptyList();
+        }
+        return postings.subMap(from, lower == null || lowerInclusive, to, upper == null || upperInclusive).values();
+    }
+
+    /**
+     * Scan-side counterpart of {@link #range}: whether a value falls in the same range.
+     */
+    static boolean inRange(Object value, Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        if (lower != null) {
+            if (!ValueComparator.comparable(value, lower)) return false;
+            int cmp = ValueComparator.INSTANCE.compare(value, lower);
+            if (cmp < 0 || (cmp == 0 && !lowerInclusive)) return false;
+        }
+        if (upper != null) {
+            if (!ValueComparator.comparable(value, upper)) return false;
+            int cmp = ValueComparator.INSTANCE.compare(value, upper);
+            if (cmp > 0 || (cmp == 0 && !upperInclusive)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ids of every document, grouped by value in value order. Documents without the field
+     * come first when ascending and last when descending; ids within a group are in id order
+     * either way.
+     */
+    Collection<NavigableSet<String>> ordered(boolean ascending) {
+        return ascending ? concat(List.of(missing), postings.values())
+                : concat(postings.descendingMap().values(), List.of(missing));
+    }
+
+    /**
+     * The part of {@link #ordered} that comes after the cursor's document, found by seeking to
+     * the cursor's value rather than walking the groups before it.
+     */
+    Collection<NavigableSet<String>> orderedAfter(QueryCursor cursor) {
+        if (!cursor.present) {
+            NavigableSet<String> rest = missing.tailSet(cursor.id, false);
+            return cursor.ascending ? concat(List.of(rest), postings.values()) : List.of(rest);
+        }
+        NavigableSet<String> group = postings.get(cursor.value);
+        List<NavigableSet<String>> first = group != null ? List.of(group.tailSet(cursor.id, false)) : List.of();
+        return cursor.ascending ? concat(first, postings.tailMap(cursor.value, false).values())
+                : concat(first, postings.headMap(cursor.value, false).descendingMap().values(), List.of(missing));
+    }
+
+    // Live view of several collections of groups, one after the other
+    @SafeVarargs
+    private static Collection<NavigableSet<String>> concat(Collection<NavigableSet<String>>... parts) {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<NavigableSet<String>> iterator() {
+                Iterator<Collection<NavigableSet<String>>> remaining = Arrays.asList(parts).iterator();
+                return new Iterator<>() {
+                    private Iterator<NavigableSet<String>> current = Collections.emptyIterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!current.hasNext() && remaining.hasNext()) {
+                            current = remaining.next().iterator();
+                        }
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public NavigableSet<String> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return current.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (Collection<NavigableSet<String>> part : parts) {
+                    size += part.size();
+                }
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package baas.core;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * On-disk layout of binary snapshots.
+ * <pre>
+ * file    := header block* footer trailer
+ * header  := "BSNP" version:u8 codec:u8 lsn:i64 timestamp:i64
+ * block   := rawLength:i32 storedLength:i32 crc32c:i32 data   (crc covers the stored data)
+ * data    := (id:string docLength:i32 doc)*                    (deflated when codec is DEFLATE)
+ *                                                  (docLength -1: removed, no doc follows)
+ * footer  := count:varint (name:string documents:varint offset:i64 blocks:varint)*
+ * trailer := footerOffset:i64 footerLength:i32 footerCrc32c:i32 "BSNP"
+ * </pre>
+ * Strings, varints and documents use the {@link DocumentCodec} encoding. The blocks of one
+ * collection are contiguous and start at the offset recorded in the footer, so collections
+ * can be read independently of each other.
+ * <p>Full snapshots ({@code snapshot_<ts>.snap}) hold every live document. Deltas
+ * ({@code delta_<ts>.snap}) use the same layout but hold only the documents changed since
+ * the previous snapshot of their chain, with removed documents as tombstones.
+ */
+final class SnapshotFormat {
+    static final byte[] MAGIC = {'B', 'S', 'N', 'P'};
+    static final byte VERSION = 1;
+    static final int FILE_HEADER_SIZE = MAGIC.length + 1 + 1 + 8 + 8;
+    static final int BLOCK_HEADER_SIZE = 12;
+    static final int TRAILER_SIZE = 8 + 4 + 4 + MAGIC.length;
+    static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    static final int TOMBSTONE = -1;
+
+    static final byte CODEC_NONE = 0;
+    static final byte CODEC_DEFLATE = 1;
+
+    static final String FILE_EXTENSION = ".snap";
+
+    private SnapshotFormat() {
+    }
+
+    /**
+     * @return true if the file starts with the binary snapshot magic
+     */
+    static boolean isBinary(File file) throws IOException {
+        if (!file.exists() || file.length() < FILE_HEADER_SIZE + TRAILER_SIZE) return false;
+        try (InputStream in = new FileInputStream(file)) {
+            return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+        }
+    }
+
+    // Reads the LSN from a snapshot header; the caller has checked the magic
+    static long readLsn(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.skipNBytes(MAGIC.length);
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file.getName());
+            }
+            in.readByte(); // codec
+            return in.readLong();
+        }
+    }
+}
@@ -1,128 +1,448 @@
 package baas.core;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
+/**
+ * Writes snapshots and the checkpoint metadata that anchors recovery. Every snapshot records
+ * the WAL LSN it covers, so startup loads the newest readable snapshot and replays only the
+ * WAL records after that LSN.
+ * <p>Snapshots are captured through a copy-on-write {@link SnapshotView}, so inserts keep
+ * running while the snapshot is serialized and compressed on the calling thread. They are
+ * written in the streaming binary format of {@link SnapshotFormat}; older gzipped Java
+ * serialization snapshots are still readable.
+ * <p>Most snapshots are deltas holding only the documents changed since the previous one.
+ * A full snapshot is written when there is no base yet, when the chain reaches
+ * {@code maxDeltas} deltas, or when more than half of all documents changed; it starts a
+ * new chain. Recovery loads the base, applies the chain's deltas in order and replays the
+ * WAL after the last one. WAL segments are kept back to the oldest retained full snapshot,
+ * so a missing or damaged delta only costs a longer replay.
+ */
 public class SnapshotManager {
+    private static final String CHECKPOINT_FILE = "checkpoint.meta";
+    private static final String FORMAT_V1 = "SNAPSHOT_V1";
+    private static final String FORMAT_V2 = "SNAPSHOT_V2";
+    private static final String FULL_PREFIX = "snapshot_";
+    private static final String DELTA_PREFIX = "delta_";
+    private static final int SNAPSHOTS_TO_KEEP = 3;
+    private static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    private static final int DEFAULT_MAX_DELTAS = 12;
+
     private final StorageService storage;
     private final WAL wal;
     private final String snapshotDir;
+    private final int compressionLevel;
+    private final int maxDeltas;
+    // Snapshots and restores never overlap: only one copy-on-write view may be open
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    // The chain the in-memory state was built from; null base means the next snapshot is full
+    private File chainBase;
+    private List<File> chainDeltas = List.of();
 
     public SnapshotManager(StorageService storage, WAL wal, String snapshotDir) {
+        this(storage, wal, snapshotDir, DEFAULT_COMPRESSION_LEVEL, DEFAULT_MAX_DELTAS);
+    }
+
+    /**
+     * @param compressionLevel {@link Deflater} level applied to each snapshot block;
+     *                         0 writes blocks uncompressed
+     * @param maxDeltas        deltas written on top of a full snapshot before the next full one;
+     *                         0 makes every snapshot full
+     */
+    public SnapshotManager(StorageService storage, WAL wal, String snapshotDir, int compressionLevel, int maxDeltas) {
         this.storage = storage;
         this.wal = wal;
         this.snapshotDir = snapshotDir.endsWith(File.separator) ? snapshotDir : snapshotDir + File.separator;
+        this.compressionLevel = compressionLevel;
+        this.maxDeltas = maxDeltas;
         new File(this.snapshotDir).mkdirs();
     }
 
+    // Writes a delta, or a full snapshot when the compaction policy calls for one
     public void takeSnapshot() throws IOException {
-        String timestamp = String.valueOf(System.currentTimeMillis());
-        File snapshotFile = new File(snapshotDir, "snapshot_" + timestamp + ".gz"); // using .gz for compressed format
-        long snapshotTimestamp = Long.parseLong(timestamp);
-
-        try (ObjectOutputStream out = new ObjectOutputStream(
-                new GZIPOutputStream(new FileOutputStream(snapshotFile)))) {
-//v1
-//            synchronized (storage) {
-//                // Use a plain Map for serialization compatibility
-//                Map<String, Map<String, Map<String, Object>>> plainMap = new HashMap<>();
-//                for (var entry : storage.getAllData().entrySet()) {
-//                    plainMap.put(entry.getKey(), new HashMap<>(entry.getValue()));
-//                }
-//
-//                out.writeObject(plainMap);
-//                out.writeLong(snapshotTimestamp);
-//                wal.markCheckpoint();
-//            }
-//v2
-            synchronized (storage) {
-                Map<String, Map<String, Map<String, Object>>> plainMap = new HashMap<>();
-                for (var entry : storage.getAllData().entrySet()) {
-                    Map<String, Map<String, Object>> filtered = new HashMap<>();
-                    for (var docEntry : entry.getValue().entrySet()) {
-                        if (!storage.isExpired(docEntry.getValue(), snapshotTimestamp)) {
-                            filtered.put(docEntry.getKey(), docEntry.getValue());
-                        }
-                    }
-                    if (!filtered.isEmpty()) {
-                        plainMap.put(entry.getKey(), filtered);
+        snapshotLock.lock();
+        try {
+            writeSnapshot(false);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Writes a full snapshot and starts a new delta chain
+    public void compact() throws IOException {
+        snapshotLock.lock();
+        try {
+            writeSnapshot(true);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private void writeSnapshot(boolean forceFull) throws IOException {
+        long snapshotTimestamp = System.currentTimeMillis();
+
+        // Every record below the new segment's base LSN was applied in memory before it was
+        // logged, so the view opened afterwards contains it. Later records are replayed on top.
+        long checkpointLsn = wal.rotate() - 1;
+
+        boolean full;
+        File snapshotFile;
+        try (SnapshotView view = storage.openSnapshotView()) {
+            long changed = view.changedCount();
+            full = forceFull || chainBase == null || chainDeltas.size() >= maxDeltas
+                    || changed * 2 > view.documentCount();
+            if (!full && changed == 0) {
+                view.commit();
+                return;
+            }
+
+            String name = (full ? FULL_PREFIX : DELTA_PREFIX) + snapshotTimestamp;
+            snapshotFile = new File(snapshotDir, name + SnapshotFormat.FILE_EXTENSION);
+            File tempFile = new File(snapshotDir, name + ".tmp");
+            try (SnapshotWriter writer = new SnapshotWriter(tempFile, checkpointLsn, snapshotTimestamp, compressionLevel)) {
+                for (String collection : view.collectionNames()) {
+                    if (full) {
+                        writer.beginCollection(collection);
+                        view.forEach(collection, (id, doc) -> {
+                            if (!storage.isExpired(doc, snapshotTimestamp)) write(writer, id, doc);
+                        });
+                        writer.endCollection();
+                    } else if (view.changedCount(collection) > 0) {
+                        writer.beginCollection(collection);
+                        view.forEachChanged(collection, (id, doc) -> {
+                            write(writer, id, doc == null || storage.isExpired(doc, snapshotTimestamp) ? null : doc);
+                        });
+                        writer.endCollection();
                     }
                 }
-                out.writeUTF("SNAPSHOT_V1");
-                out.writeObject(plainMap);
-                out.writeLong(snapshotTimestamp);
-                wal.markCheckpoint();
-                wal.rotate();
+                writer.finish();
+            } catch (UncheckedIOException e) {
+                tempFile.delete();
+                throw e.getCause();
+            } catch (IOException e) {
+                tempFile.delete();
+                throw e;
             }
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            File base = full ? snapshotFile : chainBase;
+            List<File> deltas = new ArrayList<>(full ? List.of() : chainDeltas);
+            if (!full) deltas.add(snapshotFile);
+            writeCheckpoint(base, deltas, checkpointLsn, snapshotTimestamp);
+            chainBase = base;
+            chainDeltas = deltas;
+
+            // Only now are the changed ids safely recorded on disk
+            view.commit();
+        }
+
+        if (full) {
+            deleteDeltasOutsideChain();
+            cleanupOldSnapshots(SNAPSHOTS_TO_KEEP);
+        }
 
-            cleanupOldSnapshots(3); // Retain only 3 recent snapshots
+        // WAL segments are only needed back to the oldest full snapshot we still keep
+        long oldestRetainedLsn = checkpointLsn;
+        for (File snapshot : listSnapshots()) {
+            oldestRetainedLsn = Math.min(oldestRetainedLsn, readCoveredLsn(snapshot));
         }
+        wal.releaseThrough(oldestRetainedLsn);
     }
 
+    private static void write(SnapshotWriter writer, String id, Map<String, Object> doc) {
+        try {
+            if (doc != null) {
+                writer.write(id, doc);
+            } else {
+                writer.writeTombstone(id);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Replaces the storage contents with the newest readable snapshot and replays the WAL
+     * records written after it.
+     */
     public void restore() throws IOException, ClassNotFoundException {
-        File latest = getLatestSnapshot();
-        if (latest == null) {
+        if (listSnapshots().isEmpty()) {
             throw new FileNotFoundException("No snapshots available");
         }
+        snapshotLock.lock();
+        try {
+            long checkpointLsn = loadLatestSnapshot();
+            storage.replayWAL(checkpointLsn);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the snapshot named by the checkpoint metadata and applies its deltas, falling back
+     * to older full snapshots (newest first) if it is missing or unreadable. Deltas are applied
+     * in order until one cannot be read; the WAL covers everything after it.
+     * @return the WAL LSN covered by the loaded state, or 0 if nothing could be loaded
+     */
+    public long loadLatestSnapshot() {
+        List<File> candidates = new ArrayList<>();
+        List<File> checkpointedDeltas = new ArrayList<>();
+        File checkpointed = readCheckpoint(checkpointedDeltas);
+        if (checkpointed != null) candidates.add(checkpointed);
+        for (File snapshot : listSnapshots()) {
+            if (!snapshot.equals(checkpointed)) candidates.add(snapshot);
+        }
+
+        for (File snapshot : candidates) {
+            long lsn;
+            try {
+                lsn = load(snapshot);
+                System.out.println("Loaded snapshot " + snapshot.getName() + " covering WAL up to LSN " + lsn);
+            } catch (Exception e) {
+                System.err.println("Skipping unreadable snapshot " + snapshot.getName() + ": " + e.getMessage());
+                continue;
+            }
+
+            List<File> applied = new ArrayList<>();
+            if (snapshot.equals(checkpointed)) {
+                for (File delta : checkpointedDeltas) {
+                    try {
+                        lsn = loadDelta(delta);
+                        applied.add(delta);
+                    } catch (Exception e) {
+                        System.err.println("Stopping at unreadable delta " + delta.getName() + ": " + e.getMessage());
+                        break;
+                    }
+                }
+                if (!applied.isEmpty()) {
+                    System.out.println("Applied " + applied.size() + " delta snapshot(s) covering WAL up to LSN " + lsn);
+                }
+            }
+            chainBase = snapshot;
+            chainDeltas = applied;
+            return lsn;
+        }
+        chainBase = null;
+        chainDeltas = List.of();
+        return 0;
+    }
+
+    private long load(File snapshot) throws IOException, ClassNotFoundException {
+        return SnapshotFormat.isBinary(snapshot) ? loadBinary(snapshot) : loadSerialized(snapshot);
+    }
+
+    // Streams each collection straight into its store, one collection per thread
+    private long loadBinary(File snapshot) throws IOException {
+        try (SnapshotReader reader = new SnapshotReader(snapshot)) {
+            forEachSection(reader, snapshot, section -> {
+                storage.restoreCollection(section.name, sink -> reader.read(section, sink));
+                return null;
+            });
+
+            Set<String> names = new HashSet<>();
+            for (SnapshotReader.Section section : reader.getSections()) {
+                names.add(section.name);
+            }
+            storage.retainCollections(names);
+            return reader.getLsn();
+        }
+    }
 
+    // Reads the whole delta before applying any of it, so a damaged file changes nothing
+    private long loadDelta(File delta) throws IOException {
+        try (SnapshotReader reader = new SnapshotReader(delta)) {
+            Map<String, LinkedHashMap<String, Map<String, Object>>> changes =
+                    readSections(reader, delta, LinkedHashMap::new);
+            for (Map.Entry<String, LinkedHashMap<String, Map<String, Object>>> entry : changes.entrySet()) {
+                storage.applySnapshotDelta(entry.getKey(), entry.getValue());
+            }
+            return reader.getLsn();
+        }
+    }
+
+    // Decodes every collection of the snapshot into its own map
+    private <M extends Map<String, Map<String, Object>>> Map<String, M> readSections(
+            SnapshotReader reader, File snapshot, Supplier<M> mapFactory) throws IOException {
+        List<M> loaded = forEachSection(reader, snapshot, section -> {
+            M documents = mapFactory.get();
+            reader.read(section, documents::put);
+            return documents;
+        });
+        Map<String, M> result = new HashMap<>();
+        for (int i = 0; i < loaded.size(); i++) {
+            result.put(reader.getSections().get(i).name, loaded.get(i));
+        }
+        return result;
+    }
+
+    private interface SectionLoader<T> {
+        T load(SnapshotReader.Section section) throws IOException;
+    }
+
+    // Runs the loader for every collection of the snapshot, one collection per thread
+    private <T> List<T> forEachSection(SnapshotReader reader, File snapshot, SectionLoader<T> loader) throws IOException {
+        List<SnapshotReader.Section> sections = reader.getSections();
+        int threads = Math.max(1, Math.min(sections.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService loaders = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "baas-snapshot-load");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<T>> pending = new ArrayList<>();
+            for (SnapshotReader.Section section : sections) {
+                pending.add(loaders.submit(() -> loader.load(section)));
+            }
+
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : pending) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + snapshot.getName(), e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to load " + snapshot.getName(), e.getCause());
+        } finally {
+            loaders.shutdownNow();
+        }
+    }
+
+    // Snapshots written with Java serialization before the binary format existed
+    @SuppressWarnings("unchecked")
+    private long loadSerialized(File snapshot) throws IOException, ClassNotFoundException {
         try (ObjectInputStream in = new ObjectInputStream(
-                new GZIPInputStream(new FileInputStream(latest)))) {
+                new GZIPInputStream(new FileInputStream(snapshot)))) {
 
             String version = in.readUTF();
-            if (!"SNAPSHOT_V1".equals(version)) {
+            long lsn;
+            if (FORMAT_V2.equals(version)) {
+                lsn = in.readLong();
+            } else if (FORMAT_V1.equals(version)) {
+                lsn = 0; // predates LSNs: the whole WAL has to be replayed on top
+            } else {
                 throw new IOException("Invalid snapshot format or version");
             }
 
-            @SuppressWarnings("unchecked")
             Map<String, Map<String, Map<String, Object>>> raw =
                     (Map<String, Map<String, Map<String, Object>>>) in.readObject();
+            in.readLong(); // snapshot timestamp
 
-            long snapshotTimestamp = in.readLong();
             Map<String, NavigableMap<String, Map<String, Object>>> restoredData = new HashMap<>();
             for (Map.Entry<String, Map<String, Map<String, Object>>> entry : raw.entrySet()) {
                 restoredData.put(entry.getKey(), new TreeMap<>(entry.getValue()));
             }
+            storage.restoreData(restoredData);
+            return lsn;
+        }
+    }
 
-            synchronized (storage) {
-                storage.restoreData(restoredData);
-                wal.recoverAfterCheckpoint(entry -> {
-
-                    Object tsObj = entry.get("timestamp");
-                    if (tsObj != null && Long.parseLong(tsObj.toString()) > snapshotTimestamp) {
-                        String collection = entry.get("collection").toString();
-                        String id = entry.get("id").toString();
-                        Map<String, Object> document = (Map<String, Object>) entry.get("document");
-                        storage.insertDocument(collection, id, document, false);
-                    }
-                });
+    // Reads only the header of a snapshot; 0 if it carries no LSN or cannot be read
+    private long readCoveredLsn(File snapshot) {
+        try {
+            if (SnapshotFormat.isBinary(snapshot)) {
+                return SnapshotFormat.readLsn(snapshot);
             }
+        } catch (IOException e) {
+            return 0;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(
+                new GZIPInputStream(new FileInputStream(snapshot)))) {
+            return FORMAT_V2.equals(in.readUTF()) ? in.readLong() : 0;
+        } catch (IOException e) {
+            return 0;
         }
     }
 
-    private File getLatestSnapshot() {
-        File[] snapshots = new File(snapshotDir).listFiles(
-                file -> file.getName().startsWith("snapshot_") && file.getName().endsWith(".gz"));
+    // Persists which snapshot and deltas recovery should start from, atomically
+    private void writeCheckpoint(File snapshotFile, List<File> deltas, long lsn, long timestamp) throws IOException {
+        JSONArray deltaNames = new JSONArray();
+        for (File delta : deltas) {
+            deltaNames.put(delta.getName());
+        }
+        JSONObject checkpoint = new JSONObject()
+                .put("snapshot", snapshotFile.getName())
+                .put("deltas", deltaNames)
+                .put("lsn", lsn)
+                .put("timestamp", timestamp);
 
-        if (snapshots == null || snapshots.length == 0) {
+        Path target = new File(snapshotDir, CHECKPOINT_FILE).toPath();
+        Path temp = new File(snapshotDir, CHECKPOINT_FILE + ".tmp").toPath();
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            out.write(checkpoint.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns the checkpointed full snapshot, adding its deltas in order to the given list
+    private File readCheckpoint(List<File> deltas) {
+        File checkpointFile = new File(snapshotDir, CHECKPOINT_FILE);
+        if (!checkpointFile.exists()) return null;
+        try {
+            JSONObject checkpoint = new JSONObject(Files.readString(checkpointFile.toPath(), StandardCharsets.UTF_8));
+            File snapshot = new File(snapshotDir, checkpoint.getString("snapshot"));
+            if (!snapshot.exists()) return null;
+
+            JSONArray deltaNames = checkpoint.optJSONArray("deltas");
+            if (deltaNames != null) {
+                for (int i = 0; i < deltaNames.length(); i++) {
+                    deltas.add(new File(snapshotDir, deltaNames.getString(i)));
+                }
+            }
+            return snapshot;
+        } catch (Exception e) {
+            System.err.println("Ignoring unreadable checkpoint metadata: " + e.getMessage());
             return null;
         }
+    }
+
+    // Snapshots ordered newest first
+    private List<File> listSnapshots() {
+        File[] snapshots = new File(snapshotDir).listFiles(
+                file -> file.getName().startsWith(FULL_PREFIX)
+                        && (file.getName().endsWith(SnapshotFormat.FILE_EXTENSION) || file.getName().endsWith(".gz")));
 
+        if (snapshots == null) {
+            return List.of();
+        }
         return Arrays.stream(snapshots)
-                .max(Comparator.comparingLong(File::lastModified))
-                .orElse(null);
+                .sorted(Comparator.comparing(File::getName).reversed())
+                .toList();
     }
 
-    private void cleanupOldSnapshots(int keepLast) {
-        File[] snapshots = new File(snapshotDir).listFiles(
-                file -> file.getName().startsWith("snapshot_") && file.getName().endsWith(".gz"));
+    private void deleteDeltasOutsideChain() {
+        File[] deltas = new File(snapshotDir).listFiles(
+                file -> file.getName().startsWith(DELTA_PREFIX) && file.getName().endsWith(SnapshotFormat.FILE_EXTENSION));
+        if (deltas == null) return;
+        for (File delta : deltas) {
+            if (!chainDeltas.contains(delta)) {
+                delta.delete();
+            }
+        }
+    }
 
-        if (snapshots != null && snapshots.length > keepLast) {
-            Arrays.stream(snapshots)
-                    .sorted(Comparator.comparingLong(File::lastModified).reversed())
-                    .skip(keepLast)
-                    .forEach(File::delete);
+    private void cleanupOldSnapshots(int keepLast) {
+        List<File> snapshots = listSnapshots();
+        for (int i = keepLast; i < snapshots.size(); i++) {
+            snapshots.get(i).delete();
         }
     }
 }
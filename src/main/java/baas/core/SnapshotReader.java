@@ -0,0 +1,186 @@
+package baas.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a binary snapshot (see {@link SnapshotFormat}). The footer is validated when the file
+ * is opened; collections are then streamed block by block with positional reads, so several
+ * threads can read different collections at the same time.
+ */
+class SnapshotReader implements AutoCloseable {
+    private final File file;
+    private final FileChannel channel;
+    private final byte codec;
+    private final long lsn;
+    private final long timestamp;
+    private final List<Section> sections = new ArrayList<>();
+
+    static class Section {
+        final String name;
+        final int documents;
+        final long offset;
+        final int blocks;
+
+        Section(String name, int documents, long offset, int blocks) {
+            this.name = name;
+            this.documents = documents;
+            this.offset = offset;
+            this.blocks = blocks;
+        }
+    }
+
+    SnapshotReader(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(0, SnapshotFormat.FILE_HEADER_SIZE);
+            byte[] magic = new byte[SnapshotFormat.MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, SnapshotFormat.MAGIC)) {
+                throw new IOException("Not a binary snapshot: " + file.getName());
+            }
+            byte version = header.get();
+            if (version != SnapshotFormat.VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file.getName());
+            }
+            this.codec = header.get();
+            this.lsn = header.getLong();
+            this.timestamp = header.getLong();
+
+            ByteBuffer trailer = read(channel.size() - SnapshotFormat.TRAILER_SIZE, SnapshotFormat.TRAILER_SIZE);
+            long footerOffset = trailer.getLong();
+            int footerLength = trailer.getInt();
+            int footerCrc = trailer.getInt();
+            trailer.get(magic);
+            if (!Arrays.equals(magic, SnapshotFormat.MAGIC)) {
+                throw new IOException("Snapshot " + file.getName() + " is incomplete");
+            }
+
+            ByteBuffer footer = read(footerOffset, footerLength);
+            if (crc(footer) != footerCrc) {
+                throw new IOException("Snapshot footer checksum mismatch in " + file.getName());
+            }
+            int count = DocumentCodec.readVarint(footer);
+            for (int i = 0; i < count; i++) {
+                String name = DocumentCodec.readString(footer);
+                int documents = DocumentCodec.readVarint(footer);
+                long offset = footer.getLong();
+                int blocks = DocumentCodec.readVarint(footer);
+                sections.add(new Section(name, documents, offset, blocks));
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long getLsn() {
+        return lsn;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    List<Section> getSections() {
+        return sections;
+    }
+
+    /**
+     * Streams every document of the section to the sink in the order it was written;
+     * tombstones are passed as {@code null}.
+     */
+    void read(Section section, BiConsumer<String, Map<String, Object>> sink) throws IOException {
+        Inflater inflater = codec == SnapshotFormat.CODEC_DEFLATE ? new Inflater() : null;
+        try {
+            long position = section.offset;
+            for (int i = 0; i < section.blocks; i++) {
+                ByteBuffer header = read(position, SnapshotFormat.BLOCK_HEADER_SIZE);
+                int rawLength = header.getInt();
+                int storedLength = header.getInt();
+                int checksum = header.getInt();
+                if (rawLength < 0 || rawLength > SnapshotFormat.MAX_BLOCK_SIZE
+                        || storedLength < 0 || storedLength > SnapshotFormat.MAX_BLOCK_SIZE) {
+                    throw new IOException("Corrupt block header at offset " + position + " in " + file.getName());
+                }
+
+                ByteBuffer stored = read(position + SnapshotFormat.BLOCK_HEADER_SIZE, storedLength);
+                if (crc(stored) != checksum) {
+                    throw new IOException("Block checksum mismatch at offset " + position + " in " + file.getName());
+                }
+                ByteBuffer data = inflater != null ? inflate(inflater, stored, rawLength) : stored;
+
+                while (data.hasRemaining()) {
+                    String id = DocumentCodec.readString(data);
+                    int length = data.getInt();
+                    if (length == SnapshotFormat.TOMBSTONE) {
+                        sink.accept(id, null);
+                        continue;
+                    }
+                    Map<String, Object> document = DocumentCodec.decode(data.slice(data.position(), length));
+                    data.position(data.position() + length);
+                    sink.accept(id, document);
+                }
+                position += SnapshotFormat.BLOCK_HEADER_SIZE + storedLength;
+            }
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+    }
+
+    private ByteBuffer inflate(Inflater inflater, ByteBuffer stored, int rawLength) throws IOException {
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(stored.array(), stored.arrayOffset(), stored.remaining());
+        try {
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += n;
+            }
+            if (length != rawLength) {
+                throw new IOException("Truncated block in " + file.getName());
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block in " + file.getName(), e);
+        }
+        return ByteBuffer.wrap(raw);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (position < 0 || position + length > channel.size()) {
+            throw new IOException("Snapshot " + file.getName() + " is truncated");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file.getName());
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static int crc(ByteBuffer buffer) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
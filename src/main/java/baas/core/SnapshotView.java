@@ -0,0 +1,189 @@
+package baas.core;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Point-in-time, copy-on-write view of every collection for a snapshot. Opening the view only
+ * marks each collection; documents are then copied in small chunks under the read lock, and
+ * writers keep the old version of any document they change before it has been copied. Writes
+ * are never blocked for longer than one chunk, and serialization happens outside any lock.
+ * <p>Opening the view also takes over each collection's changed ids, so the view can
+ * serve either a full copy or just the documents changed since the previous snapshot.
+ * Unless the view is committed, those ids are handed back when it is closed.
+ * <p>Stored documents are never mutated in place, so a copied reference stays valid.
+ * Only one view may be open at a time.
+ */
+class SnapshotView implements AutoCloseable {
+    private static final int CHUNK_SIZE = 1024;
+
+    private final Map<String, CollectionData> collections;
+    private final Map<String, Set<String>> changedIds = new HashMap<>();
+    private boolean committed = false;
+
+    SnapshotView(Map<String, CollectionData> collections) {
+        this.collections = collections;
+        for (Map.Entry<String, CollectionData> entry : collections.entrySet()) {
+            CollectionData data = entry.getValue();
+            data.lock.writeLock().lock();
+            try {
+                data.snapshotPreImages = new HashMap<>();
+                data.snapshotCursor = null;
+                changedIds.put(entry.getKey(), data.changedIds);
+                data.changedIds = new HashSet<>();
+            } finally {
+                data.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    Set<String> collectionNames() {
+        return collections.keySet();
+    }
+
+    // Number of documents changed since the previous snapshot, across all collections
+    long changedCount() {
+        long count = 0;
+        for (Set<String> ids : changedIds.values()) {
+            count += ids.size();
+        }
+        return count;
+    }
+
+    int changedCount(String collection) {
+        Set<String> ids = changedIds.get(collection);
+        return ids != null ? ids.size() : 0;
+    }
+
+    // Approximate number of documents in all collections
+    long documentCount() {
+        long count = 0;
+        for (CollectionData data : collections.values()) {
+            data.lock.readLock().lock();
+            try {
+                count += data.documents.size();
+            } finally {
+                data.lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Passes the snapshot-time version of every document changed since the previous snapshot
+     * to {@code sink}, outside the collection's lock; removed documents are passed as
+     * {@code null}. Each collection can be scanned once.
+     */
+    void forEachChanged(String collection, BiConsumer<String, Map<String, Object>> sink) {
+        CollectionData data = collections.get(collection);
+        if (data == null) return;
+
+        // Visiting the ids in order lets writers skip pre-images for ids already copied
+        Iterator<String> ids = new TreeSet<>(changedIds.get(collection)).iterator();
+        List<Map.Entry<String, Map<String, Object>>> chunk = new ArrayList<>(CHUNK_SIZE);
+        while (ids.hasNext()) {
+            chunk.clear();
+            data.lock.readLock().lock();
+            try {
+                while (ids.hasNext() && chunk.size() < CHUNK_SIZE) {
+                    String id = ids.next();
+                    Map<String, Object> original = data.snapshotPreImages.remove(id);
+                    Map<String, Object> doc = original != null ? original : data.documents.get(id);
+                    chunk.add(new AbstractMap.SimpleImmutableEntry<>(id, doc != CollectionData.ABSENT ? doc : null));
+                    data.snapshotCursor = id;
+                }
+            } finally {
+                data.lock.readLock().unlock();
+            }
+
+            for (Map.Entry<String, Map<String, Object>> entry : chunk) {
+                sink.accept(entry.getKey(), entry.getValue());
+            }
+        }
+        release(data);
+    }
+
+    // The snapshot was persisted: the changed ids it took over are no longer needed
+    void commit() {
+        committed = true;
+    }
+
+    /**
+     * Passes every document the collection held when the view was opened to {@code sink},
+     * outside the collection's lock. Each collection can be scanned once.
+     */
+    void forEach(String collection, BiConsumer<String, Map<String, Object>> sink) {
+        CollectionData data = collections.get(collection);
+        if (data == null) return;
+
+        List<Map.Entry<String, Map<String, Object>>> chunk = new ArrayList<>(CHUNK_SIZE);
+        boolean done = false;
+        while (!done) {
+            chunk.clear();
+            data.lock.readLock().lock();
+            try {
+                String cursor = data.snapshotCursor;
+                Iterator<Map.Entry<String, Map<String, Object>>> remaining = data.documents.scan(cursor);
+                int visited = 0;
+                done = true;
+                while (remaining.hasNext()) {
+                    Map.Entry<String, Map<String, Object>> entry = remaining.next();
+                    if (visited++ == CHUNK_SIZE) {
+                        done = false;
+                        break;
+                    }
+                    // Only this scan touches the pre-images while writers are locked out
+                    Map<String, Object> original = data.snapshotPreImages.remove(entry.getKey());
+                    Map<String, Object> doc = original != null ? original : entry.getValue();
+                    if (doc != CollectionData.ABSENT) {
+                        chunk.add(Map.entry(entry.getKey(), doc));
+                    }
+                    cursor = entry.getKey();
+                }
+                data.snapshotCursor = cursor;
+
+                if (done) {
+                    // Documents removed before the scan reached them survive only as pre-images
+                    for (Map.Entry<String, Map<String, Object>> entry : data.snapshotPreImages.entrySet()) {
+                        if (entry.getValue() != CollectionData.ABSENT) {
+                            chunk.add(Map.entry(entry.getKey(), entry.getValue()));
+                        }
+                    }
+                }
+            } finally {
+                data.lock.readLock().unlock();
+            }
+
+            for (Map.Entry<String, Map<String, Object>> entry : chunk) {
+                sink.accept(entry.getKey(), entry.getValue());
+            }
+        }
+        release(data);
+    }
+
+    private void release(CollectionData data) {
+        data.lock.writeLock().lock();
+        try {
+            data.snapshotPreImages = null;
+            data.snapshotCursor = null;
+        } finally {
+            data.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Map.Entry<String, CollectionData> entry : collections.entrySet()) {
+            CollectionData data = entry.getValue();
+            release(data);
+            if (!committed) {
+                data.lock.writeLock().lock();
+                try {
+                    data.changedIds.addAll(changedIds.get(entry.getKey()));
+                } finally {
+                    data.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+}
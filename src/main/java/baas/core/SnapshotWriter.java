@@ -0,0 +1,168 @@
+package baas.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+/**
+ * Streams a binary snapshot (see {@link SnapshotFormat}) to disk one block at a time, so
+ * memory use is bounded by the block size whatever the size of the dataset.
+ */
+class SnapshotWriter implements AutoCloseable {
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    private final FileOutputStream file;
+    private final OutputStream out;
+    private final Deflater deflater;
+    private long position = 0;
+
+    private final DocumentCodec.Writer block = new DocumentCodec.Writer(BLOCK_SIZE + 4096);
+    private byte[] compressed = new byte[0];
+
+    private final List<Section> sections = new ArrayList<>();
+    private Section current;
+
+    private static class Section {
+        final String name;
+        final long offset;
+        long documents = 0;
+        int blocks = 0;
+
+        Section(String name, long offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * @param compressionLevel a {@link Deflater} level; 0 stores blocks uncompressed
+     */
+    SnapshotWriter(File target, long lsn, long timestamp, int compressionLevel) throws IOException {
+        this.file = new FileOutputStream(target);
+        this.out = new BufferedOutputStream(file, 1024 * 1024);
+        this.deflater = compressionLevel > 0 ? new Deflater(compressionLevel) : null;
+
+        ByteBuffer header = ByteBuffer.allocate(SnapshotFormat.FILE_HEADER_SIZE);
+        header.put(SnapshotFormat.MAGIC)
+                .put(SnapshotFormat.VERSION)
+                .put(deflater != null ? SnapshotFormat.CODEC_DEFLATE : SnapshotFormat.CODEC_NONE)
+                .putLong(lsn)
+                .putLong(timestamp);
+        write(header.array(), 0, header.capacity());
+    }
+
+    void beginCollection(String name) throws IOException {
+        if (current != null) endCollection();
+        current = new Section(name, position);
+    }
+
+    void write(String id, Map<String, Object> document) throws IOException {
+        block.writeString(id);
+        int lengthAt = block.size();
+        block.writeInt(0);
+        block.writeValue(document);
+        block.setInt(lengthAt, block.size() - lengthAt - 4);
+        current.documents++;
+
+        if (block.size() >= BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    // Marks a document removed since the snapshot this one builds on
+    void writeTombstone(String id) throws IOException {
+        block.writeString(id);
+        block.writeInt(SnapshotFormat.TOMBSTONE);
+        current.documents++;
+
+        if (block.size() >= BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    void endCollection() throws IOException {
+        flushBlock();
+        sections.add(current);
+        current = null;
+    }
+
+    // Writes the footer and trailer and forces everything to disk
+    void finish() throws IOException {
+        if (current != null) endCollection();
+
+        DocumentCodec.Writer footer = new DocumentCodec.Writer(256);
+        footer.writeVarint(sections.size());
+        for (Section section : sections) {
+            footer.writeString(section.name);
+            footer.writeVarint((int) section.documents);
+            footer.writeLong(section.offset);
+            footer.writeVarint(section.blocks);
+        }
+
+        long footerOffset = position;
+        write(footer.array(), 0, footer.size());
+
+        ByteBuffer trailer = ByteBuffer.allocate(SnapshotFormat.TRAILER_SIZE);
+        trailer.putLong(footerOffset)
+                .putInt(footer.size())
+                .putInt(crc(footer.array(), footer.size()))
+                .put(SnapshotFormat.MAGIC);
+        write(trailer.array(), 0, trailer.capacity());
+
+        out.flush();
+        file.getFD().sync();
+    }
+
+    private void flushBlock() throws IOException {
+        if (block.size() == 0) return;
+
+        byte[] data = block.array();
+        int storedLength = block.size();
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(data, 0, block.size());
+            deflater.finish();
+            if (compressed.length < block.size() + 64) {
+                compressed = new byte[block.size() + 64];
+            }
+            storedLength = 0;
+            while (!deflater.finished()) {
+                if (storedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                storedLength += deflater.deflate(compressed, storedLength, compressed.length - storedLength);
+            }
+            data = compressed;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(SnapshotFormat.BLOCK_HEADER_SIZE);
+        header.putInt(block.size()).putInt(storedLength).putInt(crc(data, storedLength));
+        write(header.array(), 0, header.capacity());
+        write(data, 0, storedLength);
+
+        current.blocks++;
+        block.reset();
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        position += length;
+    }
+
+    private static int crc(byte[] bytes, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (deflater != null) deflater.end();
+        out.close();
+    }
+}
@@ -0,0 +1,150 @@
+package baas.core;
+
+import java.util.*;
+
+/**
+ * Collects documents and returns them in a query's order: by one field in
+ * {@link ValueComparator} order, documents without the field first when ascending and last
+ * when descending, then by id. This is the order ordered indexes produce and that
+ * {@link QueryCursor} resumes from. With a limit only the first {@code limit} documents of
+ * that order are retained, in a bounded heap, so a "top K" query costs O(n log k) and
+ * k documents of memory instead of sorting every match.
+ *
+ * <p>Each document's sort value is read once when it is added. Longs, doubles and strings
+ * compare directly; other values and mixed types go through {@link ValueComparator}.
+ */
+final class SortBuffer {
+    private static final byte MISSING = 0;
+    private static final byte INTEGRAL = 1;
+    private static final byte FLOATING = 2;
+    private static final byte STRING = 3;
+    private static final byte OTHER = 4;
+
+    private static final class Entry implements Map.Entry<String, Map<String, Object>> {
+        final String id;
+        final Map<String, Object> document;
+        final Object value;
+        final byte kind;
+        final long integral;
+        final double floating;
+
+        Entry(String id, Map<String, Object> document, String field) {
+            this.id = id;
+            this.document = document;
+            Object resolved = field != null ? FieldPath.resolve(document, field) : FieldPath.ABSENT;
+            boolean present = resolved != FieldPath.ABSENT;
+            value = present ? resolved : null;
+            if (!present) {
+                kind = MISSING;
+                integral = 0;
+                floating = 0;
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                kind = INTEGRAL;
+                integral = ((Number) value).longValue();
+                floating = 0;
+            } else if (value instanceof Double || value instanceof Float) {
+                kind = FLOATING;
+                integral = 0;
+                floating = ((Number) value).doubleValue();
+            } else {
+                kind = value instanceof String ? STRING : OTHER;
+                integral = 0;
+                floating = 0;
+            }
+        }
+
+        @Override
+        public String getKey() {
+            return id;
+        }
+
+        @Override
+        public Map<String, Object> getValue() {
+            return document;
+        }
+
+        @Override
+        public Map<String, Object> setValue(Map<String, Object> document) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final String field;
+    private final int limit;
+    private final Comparator<Entry> order;
+    private final PriorityQueue<Entry> heap;    // bounded: the last retained entry at the head
+    private final List<Entry> entries;          // unbounded
+    private long added;
+
+    /**
+     * @param field sort field, or null to order by id alone
+     * @param limit number of documents to keep, or 0 to keep all of them
+     */
+    SortBuffer(String field, boolean ascending, int limit) {
+        Comparator<Entry> byValue = ascending ? SortBuffer::compareValues : (a, b) -> compareValues(b, a);
+        this.field = field;
+        this.order = byValue.thenComparing(Entry::getKey);
+        this.limit = limit;
+        this.heap = limit > 0 ? new PriorityQueue<>(Math.min(limit, 1024) + 1, order.reversed()) : null;
+        this.entries = limit > 0 ? null : new ArrayList<>();
+    }
+
+    void add(String id, Map<String, Object> document) {
+        added++;
+        offer(new Entry(id, document, field));
+    }
+
+    /**
+     * Adds the documents another buffer for the same order retained, as when the parts of
+     * one scan were collected separately.
+     */
+    SortBuffer addAll(SortBuffer other) {
+        added += other.added;
+        for (Entry entry : other.heap != null ? other.heap : other.entries) {
+            offer(entry);
+        }
+        return this;
+    }
+
+    private void offer(Entry entry) {
+        if (heap == null) {
+            entries.add(entry);
+        } else if (heap.size() < limit) {
+            heap.add(entry);
+        } else if (order.compare(entry, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(entry);
+        }
+    }
+
+    /**
+     * Number of documents added, including any the limit dropped.
+     */
+    long added() {
+        return added;
+    }
+
+    /**
+     * The retained documents in sort order, with their ids.
+     */
+    List<Map.Entry<String, Map<String, Object>>> sorted() {
+        List<Entry> result = heap != null ? new ArrayList<>(heap) : entries;
+        result.sort(order);
+        return new ArrayList<>(result);
+    }
+
+    private static int compareValues(Entry a, Entry b) {
+        if (a.kind == MISSING || b.kind == MISSING) {
+            return Boolean.compare(a.kind != MISSING, b.kind != MISSING);
+        }
+        if (a.kind == b.kind) {
+            switch (a.kind) {
+                case INTEGRAL: return Long.compare(a.integral, b.integral);
+                case FLOATING: return Double.compare(a.floating, b.floating);
+                case STRING: return ((String) a.value).compareTo((String) b.value);
+                default: break;
+            }
+        }
+        return ValueComparator.INSTANCE.compare(a.value, b.value);
+    }
+}
@@ -1,20 +1,24 @@
 package baas.core;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class StorageService {
-    private final Map<String, NavigableMap<String, Map<String, Object>>> collections = new HashMap<>();
-    private final Map<String, Map<String, Map<Object, Set<String>>>> indexes = new HashMap<>();
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Each collection carries its own lock, so unrelated collections never contend
+    private final ConcurrentMap<String, CollectionData> collections = new ConcurrentHashMap<>();
     private final WAL wal;
     private final String snapshotDir;
+    private final SnapshotManager snapshotManager;
+    private final ExpiryManager expiryManager;
+    private final Function<String, DocumentStore> storeFactory;
+    private final ParallelScan parallelScan = new ParallelScan(Runtime.getRuntime().availableProcessors());
 
     // Constants for WAL keys
     private static final String KEY_OPERATION = "operation";
@@ -22,20 +26,51 @@ public class StorageService {
     private static final String KEY_ID = "id";
     private static final String KEY_DOCUMENT = "document";
 
+    // TTL sweeping: expiry times are grouped into one-second buckets
+    private static final long EXPIRY_BUCKET_MS = 1000;
+    private static final long EXPIRY_TICK_MS = 1000;
+    private static final int EXPIRY_MAX_PER_TICK = 10_000;
+
+    // Sorted pages ending further in than this sort every match instead of keeping a heap
+    private static final long MAX_TOP_K = 100_000;
+
     public StorageService(String walPath, String snapshotDir) throws IOException {
-        this.wal = new WAL(walPath,5, 3);
+        this(walPath, snapshotDir, collection -> new InMemoryDocumentStore());
+    }
+
+    /**
+     * @param storeFactory creates the storage engine for each collection, e.g.
+     *                     {@link LsmDocumentStore#factory} to keep documents on disk
+     */
+    public StorageService(String walPath, String snapshotDir, Function<String, DocumentStore> storeFactory) throws IOException {
+        this(new WAL(walPath, 5, 3), snapshotDir, storeFactory);
+    }
+
+    /**
+     * @param wal the log to recover from and append to, e.g. one with tuned group commit;
+     *            {@link #close} closes it
+     */
+    public StorageService(WAL wal, String snapshotDir, Function<String, DocumentStore> storeFactory) throws IOException {
+        this.storeFactory = storeFactory;
+        this.wal = wal;
         this.snapshotDir = snapshotDir.endsWith(File.separator) ? snapshotDir : snapshotDir + File.separator;
         File snapshotFolder = new File(this.snapshotDir);
         if (!snapshotFolder.exists() && !snapshotFolder.mkdirs()) {
             throw new IOException("Failed to create snapshot directory");
         }
-        recoverFromWAL();
+        // Start from the newest snapshot and replay only the WAL written after it
+        this.snapshotManager = new SnapshotManager(this, wal, this.snapshotDir);
+        replayWAL(snapshotManager.loadLatestSnapshot());
+
+        this.expiryManager = new ExpiryManager(this, EXPIRY_TICK_MS, EXPIRY_MAX_PER_TICK);
+        expiryManager.start();
     }
 
+    // Applies every WAL record with an LSN greater than afterLsn
     @SuppressWarnings("unchecked")
-    private void recoverFromWAL() {
+    void replayWAL(long afterLsn) {
         try {
-            wal.recover(entry -> {
+            wal.recover(afterLsn, entry -> {
                 if (entry == null ||
                         entry.get(KEY_COLLECTION) == null ||
                         entry.get(KEY_ID) == null ||
@@ -55,263 +90,1094 @@ public class StorageService {
     }
 
     public void insertDocument(String collection, String id, Map<String, Object> document, boolean logToWAL) {
-        lock.writeLock().lock();
+        insertDocument(collection, id, document, logToWAL, logToWAL ? null : Durability.NONE);
+    }
+
+    /**
+     * @param durability how the write is logged; {@code null} uses the collection's setting
+     */
+    public void insertDocument(String collection, String id, Map<String, Object> document, Durability durability) {
+        insertDocument(collection, id, document, true, durability);
+    }
+
+    private void insertDocument(String collection, String id, Map<String, Object> document,
+                                boolean fresh, Durability durability) {
+        CollectionData data = collectionFor(collection);
+        Durability mode = durability != null ? durability : data.durability;
+        CompletableFuture<Void> durable = null;
+        data.lock.writeLock().lock();
         try {
-            // Calculate expiry time if TTL is specified
-            Map<String, Object> docToStore = new HashMap<>(document);
-            if (document.containsKey("_ttl_ms")) {
-                Object ttlObj = document.get("_ttl_ms");
-                if (ttlObj instanceof Number) {
-                    long ttl = ((Number) ttlObj).longValue();
-                    long expiryTime = System.currentTimeMillis() + ttl;
-                    docToStore.put("_expiry", expiryTime);
-                }
+            purgePendingExpired(data);
+            Map<String, Object> docToStore = applyInsert(data, id, document, fresh);
+
+            // Enqueue under the lock so the WAL order matches the in-memory order
+            if (mode != Durability.NONE) {
+                durable = wal.append(walEntry(collection, id, docToStore), mode);
             }
+        } finally {
+            data.lock.writeLock().unlock();
+        }
 
-            collections.computeIfAbsent(collection, k -> new TreeMap<>());
-            collections.get(collection).put(id, docToStore);
+        // Wait for the group commit outside the lock so other writers can join the batch
+        if (durable != null) {
+            awaitDurable(durable);
+        }
+    }
 
-            // Update indexes
-            if (indexes.containsKey(collection)) {
-                for (String indexedField : indexes.get(collection).keySet()) {
-                    if (docToStore.containsKey(indexedField)) {
-                        Object value = docToStore.get(indexedField);
-                        indexes.get(collection).get(indexedField)
-                                .computeIfAbsent(value, k -> new HashSet<>())
-                                .add(id);
-                    }
+    public void insertDocuments(String collection, Map<String, Map<String, Object>> documents) {
+        insertDocuments(collection, documents, null);
+    }
+
+    /**
+     * Inserts several documents into one collection under a single lock acquisition and
+     * waits once for all of their WAL records, so a bulk insert shares its fsyncs.
+     * @param durability how the writes are logged; {@code null} uses the collection's setting
+     */
+    public void insertDocuments(String collection, Map<String, Map<String, Object>> documents, Durability durability) {
+        CollectionData data = collectionFor(collection);
+        Durability mode = durability != null ? durability : data.durability;
+        List<CompletableFuture<Void>> pending = new ArrayList<>(documents.size());
+        data.lock.writeLock().lock();
+        try {
+            purgePendingExpired(data);
+            for (Map.Entry<String, Map<String, Object>> entry : documents.entrySet()) {
+                Map<String, Object> docToStore = applyInsert(data, entry.getKey(), entry.getValue(), true);
+                if (mode != Durability.NONE) {
+                    pending.add(wal.append(walEntry(collection, entry.getKey(), docToStore), mode));
                 }
             }
+        } finally {
+            data.lock.writeLock().unlock();
+        }
+
+        awaitDurable(CompletableFuture.allOf(pending.toArray(CompletableFuture<?>[]::new)));
+    }
+
+    // Default durability for inserts into the collection that don't ask for one
+    public void setDurability(String collection, Durability durability) {
+        collectionFor(collection).durability = durability;
+    }
+
+    public Durability getDurability(String collection) {
+        CollectionData data = collections.get(collection);
+        return data != null ? data.durability : Durability.GROUP;
+    }
+
+    /**
+     * Caps the threads one full scan may use, so that a large analytical query leaves cores
+     * for point lookups. Defaults to the number of processors; 1 scans on the request thread.
+     */
+    public void setScanParallelism(int parallelism) {
+        parallelScan.setParallelism(parallelism);
+    }
+
+    public int getScanParallelism() {
+        return parallelScan.parallelism();
+    }
 
-            if (logToWAL) {
-                Map<String, Object> walEntry = new HashMap<>();
-                walEntry.put(KEY_OPERATION, "insert");
-                walEntry.put(KEY_COLLECTION, collection);
-                walEntry.put(KEY_ID, id);
-                walEntry.put(KEY_DOCUMENT, docToStore);
-                wal.log(walEntry);
+    // Stores the document and updates all indexes; caller must hold the write lock
+    private Map<String, Object> applyInsert(CollectionData data, String id, Map<String, Object> document, boolean fresh) {
+        // Calculate expiry time if TTL is specified. Replayed documents keep the
+        // expiry that was logged, so recovery never extends their lifetime.
+        Map<String, Object> docToStore = new HashMap<>(document);
+        boolean replayedExpiry = !fresh && document.get("_expiry") instanceof Number;
+        if (document.containsKey("_ttl_ms") && !replayedExpiry) {
+            Object ttlObj = document.get("_ttl_ms");
+            if (ttlObj instanceof Number) {
+                long ttl = ((Number) ttlObj).longValue();
+                long expiryTime = System.currentTimeMillis() + ttl;
+                docToStore.put("_expiry", expiryTime);
             }
+        }
+
+        Map<String, Object> previous = data.documents.put(id, docToStore);
+        data.recordChange(id, previous);
+        if (previous != null) {
+            cleanupIndexesForDocument(data, id, previous);
+        }
+
+        // Update indexes
+        for (SecondaryIndex index : data.indexes.values()) {
+            index.add(id, docToStore);
+        }
+        for (CompoundIndex index : data.compoundIndexes.values()) {
+            index.add(id, docToStore);
+        }
+        trackExpiry(data, id, docToStore);
+        return docToStore;
+    }
+
+    private Map<String, Object> walEntry(String collection, String id, Map<String, Object> docToStore) {
+        Map<String, Object> walEntry = new HashMap<>();
+        walEntry.put(KEY_OPERATION, "insert");
+        walEntry.put(KEY_COLLECTION, collection);
+        walEntry.put(KEY_ID, id);
+        walEntry.put(KEY_DOCUMENT, docToStore);
+        return walEntry;
+    }
+
+    private void awaitDurable(CompletableFuture<Void> durable) {
+        try {
+            WAL.awaitDurable(durable);
         } catch (IOException e) {
             throw new RuntimeException("WAL write failed", e);
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
+    /**
+     * @return the stored document, or null if it does not exist or has expired. Stored
+     * documents are immutable and returned without copying.
+     */
     public Map<String, Object> getDocument(String collection, String id) {
-        lock.writeLock().lock();  // Use write lock because we might remove expired doc
-        try {
-            if (!collections.containsKey(collection)) {
-                return null;
-            }
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return null;
+        }
 
-            Map<String, Object> doc = collections.get(collection).get(id);
+        data.lock.readLock().lock();
+        try {
+            Map<String, Object> doc = data.documents.get(id);
             if (doc == null) return null;
 
-            // TTL check
-            if (doc.containsKey("_expiry")) {
-                Object expiryObj = doc.get("_expiry");
-                if (expiryObj instanceof Number) {
-                    long expiryTime = ((Number) expiryObj).longValue();
-                    if (System.currentTimeMillis() > expiryTime) {
-                        // Lazy deletion of expired doc
-                        collections.get(collection).remove(id);
-                        return null;
-                    }
-                }
+            // TTL check: expired documents are invisible, removal is left to the next writer
+            if (isExpired(doc)) {
+                data.pendingExpired.add(id);
+                return null;
             }
 
-            return new HashMap<>(doc);
+            return doc;
         } finally {
-            lock.writeLock().unlock();
+            data.lock.readLock().unlock();
         }
     }
 
     /**
-     * Get all documents from a collection, handling TTL expiry with lazy deletion
+     * Get all documents from a collection, skipping documents whose TTL has expired
      * @param collection The collection name
-     * @return List of all non-expired documents in the collection
+     * @return List of all non-expired documents in the collection; the documents are the
+     * immutable stored instances, not copies
      */
     public List<Map<String, Object>> getAllDocuments(String collection) {
-        lock.writeLock().lock(); // Use write lock for lazy expiry deletion
-        try {
-            List<Map<String, Object>> results = new ArrayList<>();
-            if (!collections.containsKey(collection)) {
-                return results;
-            }
+        List<Map<String, Object>> results = new ArrayList<>();
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return results;
+        }
 
-            NavigableMap<String, Map<String, Object>> docs = collections.get(collection);
+        data.lock.readLock().lock();
+        try {
             long now = System.currentTimeMillis();
 
-            // Iterate through all documents and remove expired ones
-            Iterator<Map.Entry<String, Map<String, Object>>> iterator = docs.entrySet().iterator();
-            while (iterator.hasNext()) {
-                var entry = iterator.next();
-                String docId = entry.getKey();
+            for (Map.Entry<String, Map<String, Object>> entry : data.documents.entries()) {
                 Map<String, Object> doc = entry.getValue();
-
                 if (isExpired(doc, now)) {
-                    iterator.remove(); // lazy removal of expired document
-                    // Clean up indexes for this document
-                    cleanupIndexesForDocument(collection, docId, doc);
+                    data.pendingExpired.add(entry.getKey());
                 } else {
-                    results.add(new HashMap<>(doc));
+                    results.add(doc);
                 }
             }
 
             return results;
         } finally {
-            lock.writeLock().unlock();
+            data.lock.readLock().unlock();
         }
     }
 
     /**
      * Helper method to clean up indexes when a document is removed
      */
-    private void cleanupIndexesForDocument(String collection, String docId, Map<String, Object> doc) {
-        if (indexes.containsKey(collection)) {
-            for (Map.Entry<String, Map<Object, Set<String>>> indexEntry : indexes.get(collection).entrySet()) {
-                String field = indexEntry.getKey();
-                if (doc.containsKey(field)) {
-                    Object value = doc.get(field);
-                    Set<String> docIds = indexEntry.getValue().get(value);
-                    if (docIds != null) {
-                        docIds.remove(docId);
-                        // If no more documents have this value, remove the value entry
-                        if (docIds.isEmpty()) {
-                            indexEntry.getValue().remove(value);
+    private void cleanupIndexesForDocument(CollectionData data, String docId, Map<String, Object> doc) {
+        untrackExpiry(data, docId, doc);
+        for (SecondaryIndex index : data.indexes.values()) {
+            index.remove(docId, doc);
+        }
+        for (CompoundIndex index : data.compoundIndexes.values()) {
+            index.remove(docId, doc);
+        }
+    }
+
+    /**
+     * Removes documents that readers found expired. Readers only hold the read lock,
+     * so they record expired ids and the next writer of the collection deletes them.
+     * Must be called with the collection's write lock held.
+     * @return number of documents removed
+     */
+    private int purgePendingExpired(CollectionData data) {
+        if (data.pendingExpired.isEmpty()) return 0;
+
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        Iterator<String> iterator = data.pendingExpired.iterator();
+        while (iterator.hasNext()) {
+            String id = iterator.next();
+            iterator.remove();
+            Map<String, Object> doc = data.documents.get(id);
+            // The document may have been replaced since the reader saw it
+            if (doc != null && isExpired(doc, now)) {
+                data.documents.remove(id);
+                data.recordChange(id, doc);
+                cleanupIndexesForDocument(data, id, doc);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private void trackExpiry(CollectionData data, String id, Map<String, Object> doc) {
+        Object expiry = doc.get("_expiry");
+        if (expiry instanceof Number) {
+            data.expiryBuckets
+                    .computeIfAbsent(((Number) expiry).longValue() / EXPIRY_BUCKET_MS, k -> new HashSet<>())
+                    .add(id);
+        }
+    }
+
+    private void untrackExpiry(CollectionData data, String id, Map<String, Object> doc) {
+        Object expiry = doc.get("_expiry");
+        if (expiry instanceof Number) {
+            long bucket = ((Number) expiry).longValue() / EXPIRY_BUCKET_MS;
+            Set<String> ids = data.expiryBuckets.get(bucket);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    data.expiryBuckets.remove(bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes documents from expiry buckets that lie entirely in the past, visiting at
+     * most {@code budget} documents. Removal needs no WAL record: the logged {@code _expiry}
+     * makes replayed documents expire again on their own.
+     * @return number of documents removed
+     */
+    int sweepExpired(long now, int budget) {
+        int removed = 0;
+        long currentBucket = now / EXPIRY_BUCKET_MS;
+        for (CollectionData data : collections.values()) {
+            if (removed >= budget) break;
+
+            data.lock.readLock().lock();
+            boolean due;
+            try {
+                due = !data.expiryBuckets.headMap(currentBucket, false).isEmpty() || !data.pendingExpired.isEmpty();
+            } finally {
+                data.lock.readLock().unlock();
+            }
+            if (!due) continue;
+
+            data.lock.writeLock().lock();
+            try {
+                removed += purgePendingExpired(data);
+                NavigableMap<Long, Set<String>> overdue = data.expiryBuckets.headMap(currentBucket, false);
+                while (removed < budget && !overdue.isEmpty()) {
+                    Map.Entry<Long, Set<String>> bucket = overdue.firstEntry();
+                    Set<String> ids = bucket.getValue();
+                    for (String id : new ArrayList<>(ids)) {
+                        if (removed >= budget) break;
+                        Map<String, Object> doc = data.documents.remove(id);
+                        if (doc != null) {
+                            data.recordChange(id, doc);
+                            cleanupIndexesForDocument(data, id, doc);
+                            removed++;
                         }
+                        ids.remove(id);
+                    }
+                    if (ids.isEmpty()) {
+                        data.expiryBuckets.remove(bucket.getKey());
                     }
                 }
+            } finally {
+                data.lock.writeLock().unlock();
             }
         }
+        return removed;
     }
 
-    public List<Map<String, Object>> queryDocuments(String collection, String field, Object value) {
-        lock.writeLock().lock(); // Upgrade to writeLock for lazy expiry deletion
-        try {
-            List<Map<String, Object>> results = new ArrayList<>();
-            if (!collections.containsKey(collection)) {
-                return results;
+    // Number of documents sitting in expiry buckets that are already in the past
+    long countOverdue(long now) {
+        long overdue = 0;
+        long currentBucket = now / EXPIRY_BUCKET_MS;
+        for (CollectionData data : collections.values()) {
+            data.lock.readLock().lock();
+            try {
+                for (Set<String> ids : data.expiryBuckets.headMap(currentBucket, false).values()) {
+                    overdue += ids.size();
+                }
+            } finally {
+                data.lock.readLock().unlock();
             }
+        }
+        return overdue;
+    }
+
+    public ExpiryManager getExpiryManager() {
+        return expiryManager;
+    }
+
+    public List<Map<String, Object>> queryDocuments(String collection, String field, Object value) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return results;
+        }
 
-            NavigableMap<String, Map<String, Object>> docs = collections.get(collection);
+        data.lock.readLock().lock();
+        try {
             long now = System.currentTimeMillis();
 
             // Use index if available
-            if (indexes.containsKey(collection) && indexes.get(collection).containsKey(field)) {
-                Set<String> ids = indexes.get(collection).get(field).get(value);
+            SecondaryIndex index = data.indexes.get(field);
+            if (index != null) {
+                Set<String> ids = index.get(value);
                 if (ids != null) {
-                    Iterator<String> iterator = ids.iterator();
-                    while (iterator.hasNext()) {
-                        String id = iterator.next();
-                        Map<String, Object> doc = docs.get(id);
-                        if (doc != null) {
-                            if (isExpired(doc, now)) {
-                                docs.remove(id); // lazy removal
-                                iterator.remove(); // clean index
-                            } else {
-                                results.add(new HashMap<>(doc));
-                            }
-                        }
-                    }
+                    addLive(data, ids, now, results);
                     return results;
                 }
             }
 
             // Fallback to full scan
-            Iterator<Map.Entry<String, Map<String, Object>>> iterator = docs.entrySet().iterator();
-            while (iterator.hasNext()) {
-                var entry = iterator.next();
-                Map<String, Object> doc = entry.getValue();
-                if (isExpired(doc, now)) {
-                    iterator.remove(); // lazy removal
-                    continue;
+            return scanLive(data, doc -> {
+                Object actual = FieldPath.resolve(doc, field);
+                return actual != FieldPath.ABSENT && Objects.equals(actual, value);
+            }, now);
+        } finally {
+            data.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Documents matching all of the conditions, in id order. See {@link #queryFilter}.
+     */
+    public List<Map<String, Object>> queryConditions(String collection, List<Condition> conditions) {
+        List<Filter> children = new ArrayList<>();
+        for (Condition condition : conditions) {
+            children.add(Filter.of(condition));
+        }
+        return queryFilter(collection, Filter.and(children));
+    }
+
+    /**
+     * Documents matching the filter, in id order. Candidates are taken from the indexes where
+     * the filter allows it: an AND probes the index covering the most of its conditions and
+     * intersects the result with the other indexed branches, smallest first; an OR unions its
+     * branches. Every candidate is then checked against the whole filter, so conditions on
+     * fields without an index still apply. If some branch of the filter cannot be answered
+     * from an index the collection is scanned instead.
+     */
+    public List<Map<String, Object>> queryFilter(String collection, Filter filter) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return results;
+        }
+
+        data.lock.readLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            Set<String> candidates = QueryPlanner.candidates(data, filter);
+            if (candidates != null) {
+                String[] ids = candidates.toArray(new String[0]);
+                Arrays.sort(ids);
+                for (String id : ids) {
+                    Map<String, Object> doc = data.documents.get(id);
+                    if (doc == null || !filter.matches(doc)) continue;
+                    if (isExpired(doc, now)) {
+                        data.pendingExpired.add(id);
+                    } else {
+                        results.add(doc);
+                    }
                 }
+                return results;
+            }
+            return scanLive(data, filter::matches, now);
+        } finally {
+            data.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs a query with the plan {@link QueryPlanner} picks. Matches are counted in full so
+     * the result knows the total, but documents are only collected for the requested page,
+     * and a plan that yields exactly the matches in the requested order stops reading once
+     * the page is full.
+     */
+    public QueryResult executeQuery(String collection, QuerySpec spec) {
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return new QueryResult(new ArrayList<>(), 0, false, null, null);
+        }
 
-                if (doc.containsKey(field) && Objects.equals(doc.get(field), value)) {
-                    results.add(new HashMap<>(doc));
+        data.lock.readLock().lock();
+        try {
+            QueryPlan plan = QueryPlanner.plan(data, spec);
+            long now = System.currentTimeMillis();
+            long pageEnd = spec.limit > 0 ? (long) spec.skip + spec.limit : Long.MAX_VALUE;
+            QueryCursor after = spec.after;
+            Iterator<Map.Entry<String, Map<String, Object>>> source = plan.open(data.documents);
+
+            if (plan.ordered && !readsEverything(plan, spec)) {
+                List<Map<String, Object>> page = new ArrayList<>();
+                Map.Entry<String, Map<String, Object>> last = null;
+                long matched = 0;
+                while (source.hasNext()) {
+                    // A cursor page is not counted: one match past the page shows there is more
+                    if (after != null && matched > pageEnd) break;
+                    if (after == null && matched >= pageEnd && plan.exact) {
+                        // The rest need not be read: the index already knows how many there are
+                        matched = plan.rawCount(data.documents) - expiredMatches(data, spec.filter, now);
+                        break;
+                    }
+                    Map.Entry<String, Map<String, Object>> entry = source.next();
+                    Map<String, Object> doc = entry.getValue();
+                    if (after != null && after.compareTo(entry.getKey(), doc) <= 0) continue;
+                    if (spec.filter != null && !spec.filter.matches(doc)) continue;
+                    if (isExpired(doc, now)) {
+                        data.pendingExpired.add(entry.getKey());
+                        continue;
+                    }
+                    matched++;
+                    if (matched > spec.skip && matched <= pageEnd) {
+                        page.add(project(doc, spec.fields));
+                        last = entry;
+                    }
                 }
+                return pageResult(spec, page, last, matched, pageEnd);
             }
 
-            return results;
+            // Every match is read: keep the first pageEnd of them rather than all, and spread a
+            // full scan over several threads, each keeping its own first pageEnd
+            int keep = pageEnd <= MAX_TOP_K ? (int) pageEnd : 0;
+            SortBuffer matches = parallelScan.scan(scanSize(data, plan), source,
+                    () -> new SortBuffer(spec.sortField, spec.ascending, keep),
+                    (buffer, entry) -> collect(data, spec, now, buffer, entry), SortBuffer::addAll);
+            List<Map.Entry<String, Map<String, Object>>> sorted = matches.sorted();
+            List<Map<String, Object>> page = new ArrayList<>();
+            Map.Entry<String, Map<String, Object>> last = null;
+            for (int i = spec.skip; i < sorted.size() && i < pageEnd; i++) {
+                last = sorted.get(i);
+                page.add(project(last.getValue(), spec.fields));
+            }
+            return pageResult(spec, page, last, matches.added(), pageEnd);
         } finally {
-            lock.writeLock().unlock();
+            data.lock.readLock().unlock();
         }
     }
 
-    public void takeSnapshot() throws IOException {
-        lock.writeLock().lock();
-        try (ObjectOutputStream out = new ObjectOutputStream(
-                new FileOutputStream(Paths.get(snapshotDir, "snapshot_" + System.currentTimeMillis() + ".dat").toString()))) {
-            out.writeObject(collections);
-            wal.markCheckpoint();
+    // Adds a document read by the plan if it is a live match past the cursor; called on scan threads
+    private void collect(CollectionData data, QuerySpec spec, long now, SortBuffer buffer,
+                         Map.Entry<String, Map<String, Object>> entry) {
+        Map<String, Object> doc = entry.getValue();
+        if (spec.after != null && spec.after.compareTo(entry.getKey(), doc) <= 0) return;
+        if (spec.filter != null && !spec.filter.matches(doc)) return;
+        if (isExpired(doc, now)) {
+            data.pendingExpired.add(entry.getKey());
+        } else {
+            buffer.add(entry.getKey(), doc);
+        }
+    }
+
+    // Whether an ordered plan has to read every document of its access path anyway, which a
+    // full scan does unless it can stop at the end of the page
+    private static boolean readsEverything(QueryPlan plan, QuerySpec spec) {
+        return plan.access == QueryPlan.Access.FULL_SCAN && !plan.exact && spec.after == null;
+    }
+
+    // Documents the plan's access path is known to read, for deciding whether to scan in parallel
+    private static long scanSize(CollectionData data, QueryPlan plan) {
+        return plan.access == QueryPlan.Access.FULL_SCAN ? data.documents.size() : 0;
+    }
+
+    private static QueryResult pageResult(QuerySpec spec, List<Map<String, Object>> page,
+                                          Map.Entry<String, Map<String, Object>> last, long matched, long pageEnd) {
+        boolean hasMore = matched > pageEnd;
+        QueryCursor next = hasMore && last != null ? QueryCursor.after(spec, last.getKey(), last.getValue()) : null;
+        return new QueryResult(page, spec.after != null ? -1 : (int) matched, hasMore, null, next);
+    }
+
+    /**
+     * Describes the plan {@link #executeQuery} would use, with the alternatives it rejected.
+     */
+    public String explainQuery(String collection, QuerySpec spec) {
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return "plan: collection '" + collection + "' does not exist\n";
+        }
+
+        data.lock.readLock().lock();
+        try {
+            QueryPlan plan = QueryPlanner.plan(data, spec);
+            boolean readsAll = !plan.ordered || readsEverything(plan, spec);
+            return plan.describe(spec, data.documents.size(), readsAll ? parallelScan.threadsFor(scanSize(data, plan)) : 1);
         } finally {
-            lock.writeLock().unlock();
+            data.lock.readLock().unlock();
         }
     }
 
-    public Map<String, NavigableMap<String, Map<String, Object>>> getAllData() {
-        lock.readLock().lock();
+    /**
+     * Opens a query whose matches are read in batches, for sending them to a client as they
+     * are produced. Unsorted queries answered by a full scan read the store a chunk at a
+     * time, resuming after the last id read. Other plans resolve their matching documents
+     * once, up to the end of the page, and hand them out in batches; only references are
+     * held, since stored documents are never modified.
+     */
+    public QueryStream streamQuery(String collection, QuerySpec spec) {
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return maxDocuments -> null;
+        }
+        long pageEnd = spec.limit > 0 ? (long) spec.skip + spec.limit : Long.MAX_VALUE;
+
+        List<Map<String, Object>> matches;
+        data.lock.readLock().lock();
         try {
-            Map<String, NavigableMap<String, Map<String, Object>>> copy = new HashMap<>();
-            for (Map.Entry<String, NavigableMap<String, Map<String, Object>>> entry : collections.entrySet()) {
-                copy.put(entry.getKey(), new TreeMap<>(entry.getValue()));
+            QueryPlan plan = QueryPlanner.plan(data, spec);
+            if (plan.access == QueryPlan.Access.FULL_SCAN && plan.ordered) {
+                return new ScanStream(data, spec, pageEnd);
+            }
+
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Map<String, Object>>> source = plan.open(data.documents);
+            matches = new ArrayList<>();
+            if (plan.ordered) {
+                // No total is reported, so an ordered path can stop at the end of the page
+                while (source.hasNext() && matches.size() < pageEnd) {
+                    Map.Entry<String, Map<String, Object>> entry = source.next();
+                    Map<String, Object> doc = entry.getValue();
+                    if (spec.filter != null && !spec.filter.matches(doc)) continue;
+                    if (isExpired(doc, now)) {
+                        data.pendingExpired.add(entry.getKey());
+                    } else {
+                        matches.add(doc);
+                    }
+                }
+            } else {
+                int keep = pageEnd <= MAX_TOP_K ? (int) pageEnd : 0;
+                SortBuffer sorted = parallelScan.scan(scanSize(data, plan), source,
+                        () -> new SortBuffer(spec.sortField, spec.ascending, keep),
+                        (buffer, entry) -> collect(data, spec, now, buffer, entry), SortBuffer::addAll);
+                for (Map.Entry<String, Map<String, Object>> entry : sorted.sorted()) {
+                    matches.add(entry.getValue());
+                }
             }
-            return copy;
         } finally {
-            lock.readLock().unlock();
+            data.lock.readLock().unlock();
         }
+
+        List<Map<String, Object>> page = matches.subList(Math.min(spec.skip, matches.size()),
+                (int) Math.min(pageEnd, matches.size()));
+        return new QueryStream() {
+            private int position = 0;
+
+            @Override
+            public List<Map<String, Object>> next(int maxDocuments) {
+                if (position >= page.size()) return null;
+                int end = (int) Math.min(page.size(), (long) position + maxDocuments);
+                List<Map<String, Object>> batch = new ArrayList<>(end - position);
+                for (; position < end; position++) {
+                    batch.add(project(page.get(position), spec.fields));
+                }
+                return batch;
+            }
+        };
     }
 
-    public void restoreData(Map<String, NavigableMap<String, Map<String, Object>>> data) {
-        lock.writeLock().lock();
+    /**
+     * Reads an unsorted query's matches from the store in id order, taking the read lock for
+     * one chunk at a time and resuming after the last id it read.
+     */
+    private final class ScanStream implements QueryStream {
+        // Documents looked at per batch, so the lock is released even when few of them match
+        private static final int SCAN_CHUNK = 4096;
+
+        private final CollectionData data;
+        private final QuerySpec spec;
+        private final long pageEnd;
+        private String lastId = null;
+        private long matched = 0;
+        private boolean done = false;
+
+        ScanStream(CollectionData data, QuerySpec spec, long pageEnd) {
+            this.data = data;
+            this.spec = spec;
+            this.pageEnd = pageEnd;
+        }
+
+        @Override
+        public List<Map<String, Object>> next(int maxDocuments) {
+            if (done) return null;
+            List<Map<String, Object>> batch = new ArrayList<>();
+            data.lock.readLock().lock();
+            try {
+                long now = System.currentTimeMillis();
+                Iterator<Map.Entry<String, Map<String, Object>>> source = data.documents.scan(lastId);
+                int scanned = 0;
+                while (batch.size() < maxDocuments && matched < pageEnd && scanned < SCAN_CHUNK) {
+                    if (!source.hasNext()) {
+                        done = true;
+                        break;
+                    }
+                    Map.Entry<String, Map<String, Object>> entry = source.next();
+                    lastId = entry.getKey();
+                    scanned++;
+                    Map<String, Object> doc = entry.getValue();
+                    if (spec.filter != null && !spec.filter.matches(doc)) continue;
+                    if (isExpired(doc, now)) {
+                        data.pendingExpired.add(entry.getKey());
+                        continue;
+                    }
+                    matched++;
+                    if (matched > spec.skip) {
+                        batch.add(project(doc, spec.fields));
+                    }
+                }
+                if (matched >= pageEnd) done = true;
+            } finally {
+                data.lock.readLock().unlock();
+            }
+            return batch.isEmpty() && done ? null : batch;
+        }
+    }
+
+    // Expired documents still in the store that match the filter; caller holds the read lock
+    private long expiredMatches(CollectionData data, Filter filter, long now) {
+        long expired = 0;
+        for (Map<String, Object> doc : expiredDocuments(data, now)) {
+            if (filter == null || filter.matches(doc)) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    // Expired documents the sweeper has not removed yet; caller holds the read lock
+    private List<Map<String, Object>> expiredDocuments(CollectionData data, long now) {
+        List<Map<String, Object>> expired = new ArrayList<>();
+        for (Set<String> ids : data.expiryBuckets.headMap(now / EXPIRY_BUCKET_MS, true).values()) {
+            for (String id : ids) {
+                Map<String, Object> doc = data.documents.get(id);
+                if (doc != null && isExpired(doc, now)) {
+                    expired.add(doc);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Computes the aggregation over the documents matching the filter, or over every document
+     * when it is null, as one map per group (see {@link Aggregation.Partial#results}). What the
+     * indexes know is read from them without touching documents: plain counts when the filter
+     * is answered exactly by an index, min and max of an indexed field over the collection,
+     * and counts grouped by one indexed field. Otherwise the matches are read with the plan
+     * {@link QueryPlanner} picks, a full scan spread over several threads, and each is folded
+     * into the accumulators of its group as it is read.
+     */
+    public List<Map<String, Object>> aggregate(String collection, Filter filter, Aggregation aggregation) {
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return aggregation.newPartial().results();
+        }
+
+        data.lock.readLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            QueryPlan plan = QueryPlanner.plan(data, new QuerySpec(filter));
+            if (fromIndexes(data, plan, aggregation)) {
+                return indexAggregate(data, plan, aggregation, now).results();
+            }
+            return parallelScan.scan(scanSize(data, plan), plan.open(data.documents), aggregation::newPartial,
+                    (partial, entry) -> {
+                        Map<String, Object> doc = entry.getValue();
+                        if (filter != null && !filter.matches(doc)) return;
+                        if (isExpired(doc, now)) {
+                            data.pendingExpired.add(entry.getKey());
+                        } else {
+                            partial.add(doc);
+                        }
+                    },
+                    Aggregation.Partial::merge).results();
+        } finally {
+            data.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Describes how {@link #aggregate} would compute the aggregation.
+     */
+    public String explainAggregate(String collection, Filter filter, Aggregation aggregation) {
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return "aggregate: collection '" + collection + "' does not exist\n";
+        }
+
+        data.lock.readLock().lock();
+        try {
+            QuerySpec spec = new QuerySpec(filter);
+            QueryPlan plan = QueryPlanner.plan(data, spec);
+            if (fromIndexes(data, plan, aggregation)) {
+                return "aggregate: " + aggregation + ", read from the indexes\n"
+                        + (filter != null ? plan.describe(spec, data.documents.size(), 1) : "");
+            }
+            return "aggregate: " + aggregation + (aggregation.groupBy.isEmpty()
+                    ? ", folding each match into the totals\n" : ", hashing each match into its group\n")
+                    + plan.describe(spec, data.documents.size(), parallelScan.threadsFor(scanSize(data, plan)));
+        } finally {
+            data.lock.readLock().unlock();
+        }
+    }
+
+    // Whether the indexes alone can answer the aggregation; see aggregate
+    private static boolean fromIndexes(CollectionData data, QueryPlan plan, Aggregation aggregation) {
+        if (aggregation.groupBy.size() > 1) return false;
+        if (aggregation.groupBy.size() == 1) {
+            if (plan.filter != null || !data.indexes.containsKey(aggregation.groupBy.get(0))) return false;
+            for (Aggregation.Aggregate aggregate : aggregation.aggregates) {
+                if (!aggregate.isPlainCount()) return false;
+            }
+            return true;
+        }
+        for (Aggregation.Aggregate aggregate : aggregation.aggregates) {
+            boolean extreme = aggregate.function == Aggregation.Function.MIN || aggregate.function == Aggregation.Function.MAX;
+            boolean answered = aggregate.isPlainCount() ? plan.exact
+                    : extreme && plan.filter == null && data.indexes.containsKey(aggregate.field);
+            if (!answered) return false;
+        }
+        return true;
+    }
+
+    // Reads an aggregation that fromIndexes accepted; caller holds the read lock
+    private Aggregation.Partial indexAggregate(CollectionData data, QueryPlan plan, Aggregation aggregation, long now) {
+        Aggregation.Partial result = aggregation.newPartial();
+        if (!aggregation.groupBy.isEmpty()) {
+            // Counts per value, less the expired documents not yet swept
+            String field = aggregation.groupBy.get(0);
+            SecondaryIndex index = data.indexes.get(field);
+            Map<Object, Long> counts = new HashMap<>();
+            for (Map.Entry<Object, NavigableSet<String>> entry : index.values().entrySet()) {
+                counts.merge(Aggregation.groupValue(entry.getKey()), (long) entry.getValue().size(), Long::sum);
+            }
+            counts.merge(null, (long) index.missing().size(), Long::sum);
+            for (Map<String, Object> doc : expiredDocuments(data, now)) {
+                counts.merge(Aggregation.groupValue(FieldPath.resolve(doc, field)), -1L, Long::sum);
+            }
+            for (Map.Entry<Object, Long> entry : counts.entrySet()) {
+                if (entry.getValue() <= 0) continue;
+                for (Aggregation.Accumulator accumulator : result.group(Collections.singletonList(entry.getKey()))) {
+                    accumulator.addCount(entry.getValue());
+                }
+            }
+            return result;
+        }
+
+        Aggregation.Accumulator[] accumulators = result.group(Collections.emptyList());
+        for (int i = 0; i < accumulators.length; i++) {
+            Aggregation.Aggregate aggregate = aggregation.aggregates.get(i);
+            if (aggregate.isPlainCount()) {
+                accumulators[i].addCount(plan.rawCount(data.documents) - expiredMatches(data, plan.filter, now));
+                continue;
+            }
+            // The first value in index order, skipping null, that a live document holds
+            NavigableMap<Object, NavigableSet<String>> values = data.indexes.get(aggregate.field).values().tailMap(null, false);
+            if (aggregate.function == Aggregation.Function.MAX) values = values.descendingMap();
+            for (NavigableSet<String> ids : values.values()) {
+                Map<String, Object> doc = firstLive(data, ids, now);
+                if (doc != null) {
+                    accumulators[i].add(aggregate, FieldPath.resolve(doc, aggregate.field));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    // The first of the documents that has not expired, or null; caller holds the read lock
+    private Map<String, Object> firstLive(CollectionData data, Set<String> ids, long now) {
+        for (String id : ids) {
+            Map<String, Object> doc = data.documents.get(id);
+            if (doc == null) continue;
+            if (!isExpired(doc, now)) return doc;
+            data.pendingExpired.add(id);
+        }
+        return null;
+    }
+
+    private static Map<String, Object> project(Map<String, Object> document, List<String> fields) {
+        if (fields == null || fields.isEmpty()) return document;
+        // Stored documents copy the requested fields still encoded; only those are serialized
+        if (document instanceof EncodedDocument) return ((EncodedDocument) document).project(fields);
+        Map<String, Object> projected = new LinkedHashMap<>();
+        for (String field : fields) {
+            if (document.containsKey(field)) {
+                projected.put(field, document.get(field));
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * Documents whose field lies between the bounds, compared with {@link ValueComparator}.
+     * Either bound may be null for an open range; values of a different type than the bounds
+     * never match. Uses the field's index when there is one, returning the documents in field
+     * order, and scans the collection otherwise.
+     */
+    public List<Map<String, Object>> queryRange(String collection, String field,
+                                                Object lower, boolean lowerInclusive,
+                                                Object upper, boolean upperInclusive) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        CollectionData data = collections.get(collection);
+        if (data == null) {
+            return results;
+        }
+
+        data.lock.readLock().lock();
         try {
-            collections.clear();
-            collections.putAll(data);
-            rebuildAllIndexes();
+            long now = System.currentTimeMillis();
+            SecondaryIndex index = data.indexes.get(field);
+            if (index != null) {
+                for (Set<String> ids : index.range(lower, lowerInclusive, upper, upperInclusive)) {
+                    addLive(data, ids, now, results);
+                }
+                return results;
+            }
+            return scanLive(data, doc -> {
+                Object actual = FieldPath.resolve(doc, field);
+                return actual != FieldPath.ABSENT
+                        && SecondaryIndex.inRange(actual, lower, lowerInclusive, upper, upperInclusive);
+            }, now);
         } finally {
-            lock.writeLock().unlock();
+            data.lock.readLock().unlock();
         }
     }
 
-    private void rebuildAllIndexes() {
-        indexes.forEach((collection, fieldMap) -> {
-            fieldMap.forEach((field, valueMap) -> {
-                valueMap.clear();
-                NavigableMap<String, Map<String, Object>> docs = collections.getOrDefault(collection, new TreeMap<>());
-                for (Map.Entry<String, Map<String, Object>> entry : docs.entrySet()) {
-                    String id = entry.getKey();
+    // Live documents passing the test, in id order, from a full scan; caller holds the read lock
+    private List<Map<String, Object>> scanLive(CollectionData data, Predicate<Map<String, Object>> test, long now) {
+        return parallelScan.scan(data.documents.size(), data.documents.scan(null), ArrayList::new,
+                (matches, entry) -> {
                     Map<String, Object> doc = entry.getValue();
-                    if (doc.containsKey(field)) {
-                        Object value = doc.get(field);
-                        valueMap.computeIfAbsent(value, k -> new HashSet<>()).add(id);
+                    if (!test.test(doc)) return;
+                    if (isExpired(doc, now)) {
+                        data.pendingExpired.add(entry.getKey());
+                    } else {
+                        matches.add(doc);
                     }
+                },
+                (first, second) -> {
+                    first.addAll(second);
+                    return first;
+                });
+    }
+
+    // Looks up the ids and adds the documents that have not expired; caller holds the read lock
+    private void addLive(CollectionData data, Set<String> ids, long now, List<Map<String, Object>> results) {
+        for (String id : ids) {
+            Map<String, Object> doc = data.documents.get(id);
+            if (doc == null) continue;
+            if (isExpired(doc, now)) {
+                data.pendingExpired.add(id);
+            } else {
+                results.add(doc);
+            }
+        }
+    }
+
+    public void takeSnapshot() throws IOException {
+        snapshotManager.takeSnapshot();
+    }
+
+    public SnapshotManager getSnapshotManager() {
+        return snapshotManager;
+    }
+
+    /**
+     * Opens a copy-on-write view of the current contents of every collection. Writes made
+     * after this returns are not visible through the view.
+     */
+    SnapshotView openSnapshotView() {
+        return new SnapshotView(new HashMap<>(collections));
+    }
+
+    public Map<String, NavigableMap<String, Map<String, Object>>> getAllData() {
+        Map<String, NavigableMap<String, Map<String, Object>>> copy = new HashMap<>();
+        for (Map.Entry<String, CollectionData> entry : collections.entrySet()) {
+            CollectionData data = entry.getValue();
+            data.lock.readLock().lock();
+            try {
+                NavigableMap<String, Map<String, Object>> documents = new TreeMap<>();
+                for (Map.Entry<String, Map<String, Object>> doc : data.documents.entries()) {
+                    documents.put(doc.getKey(), doc.getValue());
                 }
-            });
-        });
+                copy.put(entry.getKey(), documents);
+            } finally {
+                data.lock.readLock().unlock();
+            }
+        }
+        return copy;
     }
 
-    public void createIndex(String collection, String field) {
-        lock.writeLock().lock();
+    public void restoreData(Map<String, NavigableMap<String, Map<String, Object>>> data) {
+        Set<String> names = new HashSet<>(collections.keySet());
+        names.addAll(data.keySet());
+        for (String name : names) {
+            CollectionData collection = collectionFor(name);
+            collection.lock.writeLock().lock();
+            try {
+                collection.documents.clear();
+                NavigableMap<String, Map<String, Object>> docs = data.get(name);
+                if (docs != null) {
+                    collection.documents.putAll(docs);
+                }
+                collection.changedIds.clear();
+                rebuildIndexes(collection);
+            } finally {
+                collection.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Streams the documents of one collection, e.g. from a snapshot file
+    interface DocumentSource {
+        void forEach(BiConsumer<String, Map<String, Object>> sink) throws IOException;
+    }
+
+    /**
+     * Replaces the contents of one collection with the documents of {@code source}, streaming
+     * them straight into the collection's store.
+     */
+    void restoreCollection(String name, DocumentSource source) throws IOException {
+        CollectionData collection = collectionFor(name);
+        collection.lock.writeLock().lock();
         try {
-            indexes.computeIfAbsent(collection, k -> new HashMap<>());
-            indexes.get(collection).computeIfAbsent(field, k -> new HashMap<>());
+            collection.documents.clear();
+            source.forEach(collection.documents::put);
+            collection.changedIds.clear();
+            rebuildIndexes(collection);
+        } finally {
+            collection.lock.writeLock().unlock();
+        }
+    }
 
-            if (collections.containsKey(collection)) {
-                for (Map.Entry<String, Map<String, Object>> entry : collections.get(collection).entrySet()) {
-                    String id = entry.getKey();
-                    Map<String, Object> doc = entry.getValue();
-                    if (doc.containsKey(field)) {
-                        Object value = doc.get(field);
-                        indexes.get(collection).get(field)
-                                .computeIfAbsent(value, k -> new HashSet<>())
-                                .add(id);
+    // Empties every collection whose name is not in the set
+    void retainCollections(Set<String> names) {
+        for (Map.Entry<String, CollectionData> entry : collections.entrySet()) {
+            if (names.contains(entry.getKey())) continue;
+            CollectionData collection = entry.getValue();
+            collection.lock.writeLock().lock();
+            try {
+                collection.documents.clear();
+                collection.changedIds.clear();
+                rebuildIndexes(collection);
+            } finally {
+                collection.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies documents read from an incremental snapshot on top of the current contents.
+     * A {@code null} document marks one that was removed. Applied ids are not reported as
+     * changed, since the snapshot already holds them.
+     */
+    void applySnapshotDelta(String collection, Map<String, Map<String, Object>> changes) {
+        CollectionData data = collectionFor(collection);
+        data.lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, Map<String, Object>> change : changes.entrySet()) {
+                String id = change.getKey();
+                if (change.getValue() == null) {
+                    Map<String, Object> removed = data.documents.remove(id);
+                    if (removed != null) {
+                        cleanupIndexesForDocument(data, id, removed);
                     }
+                } else {
+                    applyInsert(data, id, change.getValue(), false);
                 }
+                data.changedIds.remove(id);
+            }
+        } finally {
+            data.lock.writeLock().unlock();
+        }
+    }
+
+    // One pass over the documents, since the store may have to read them from disk
+    private void rebuildIndexes(CollectionData data) {
+        data.expiryBuckets.clear();
+        data.indexes.values().forEach(SecondaryIndex::clear);
+        data.compoundIndexes.values().forEach(CompoundIndex::clear);
+
+        for (Map.Entry<String, Map<String, Object>> entry : data.documents.entries()) {
+            String id = entry.getKey();
+            Map<String, Object> doc = entry.getValue();
+            trackExpiry(data, id, doc);
+            for (SecondaryIndex index : data.indexes.values()) {
+                index.add(id, doc);
+            }
+            for (CompoundIndex index : data.compoundIndexes.values()) {
+                index.add(id, doc);
+            }
+        }
+    }
+
+    public void createIndex(String collection, String field) {
+        CollectionData data = collectionFor(collection);
+        data.lock.writeLock().lock();
+        try {
+            if (data.indexes.containsKey(field)) return;
+            SecondaryIndex index = new SecondaryIndex(field);
+
+            for (Map.Entry<String, Map<String, Object>> entry : data.documents.entries()) {
+                index.add(entry.getKey(), entry.getValue());
             }
+            data.indexes.put(field, index);
         } finally {
-            lock.writeLock().unlock();
+            data.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Creates an index over several fields, answering equality on any leftmost prefix of them
+     * plus a range on the next one. A single field creates an ordinary index.
+     */
+    public void createIndex(String collection, List<String> fields) {
+        if (fields.isEmpty() || new HashSet<>(fields).size() != fields.size()) {
+            throw new IllegalArgumentException("Index fields must be distinct and non-empty: " + fields);
+        }
+        if (fields.size() == 1) {
+            createIndex(collection, fields.get(0));
+            return;
+        }
+
+        CollectionData data = collectionFor(collection);
+        data.lock.writeLock().lock();
+        try {
+            if (data.compoundIndexes.containsKey(fields)) return;
+            CompoundIndex index = new CompoundIndex(fields);
+
+            for (Map.Entry<String, Map<String, Object>> entry : data.documents.entries()) {
+                index.add(entry.getKey(), entry.getValue());
+            }
+            data.compoundIndexes.put(index.fields(), index);
+        } finally {
+            data.lock.writeLock().unlock();
+        }
+    }
+
+    private CollectionData collectionFor(String collection) {
+        return collections.computeIfAbsent(collection, k -> new CollectionData(storeFactory.apply(k)));
+    }
+
+    public void close() throws IOException {
+        expiryManager.shutdown();
+        parallelScan.shutdown();
+        wal.close();
+        for (CollectionData data : collections.values()) {
+            data.lock.writeLock().lock();
+            try {
+                data.documents.close();
+            } finally {
+                data.lock.writeLock().unlock();
+            }
         }
     }
 
@@ -328,4 +1194,4 @@ public class StorageService {
         }
         return false;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,140 @@
+package baas.core;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Comparator;
+
+/**
+ * Total order over document values of any type, used by ordered indexes and sorting.
+ * Values are ordered by type first — null, booleans, numbers, strings, then everything else
+ * (maps and lists, compared by their string form) — and by value within a type. Numbers
+ * compare by magnitude regardless of their Java type, so {@code 25}, {@code 25L} and
+ * {@code 25.0} are equal, and so are the double {@code 0.1} and the decimal {@code 0.1}.
+ */
+final class ValueComparator implements Comparator<Object> {
+    static final ValueComparator INSTANCE = new ValueComparator();
+
+    private static final int NULL = 0;
+    private static final int BOOLEAN = 1;
+    private static final int NUMBER = 2;
+    private static final int STRING = 3;
+    private static final int OTHER = 4;
+
+    private ValueComparator() {
+    }
+
+    /**
+     * Marks the start or end of one type's values, so a range bounded on one side only
+     * stays within the type of its other bound.
+     */
+    private static final class TypeBound {
+        final int rank;
+        final boolean end;
+
+        TypeBound(int rank, boolean end) {
+            this.rank = rank;
+            this.end = end;
+        }
+    }
+
+    // Sorts before every value of the same type as the argument
+    static Object startOfType(Object value) {
+        return new TypeBound(rank(value), false);
+    }
+
+    // Sorts after every value of the same type as the argument
+    static Object endOfType(Object value) {
+        return new TypeBound(rank(value), true);
+    }
+
+    /**
+     * @return true if both values are of the same type in this order, so that comparing
+     * them compares their values
+     */
+    static boolean comparable(Object a, Object b) {
+        return rank(a) == rank(b);
+    }
+
+    @Override
+    public int compare(Object a, Object b) {
+        if (a instanceof TypeBound) return -compareBound((TypeBound) a, b);
+        if (b instanceof TypeBound) return compareBound((TypeBound) b, a);
+
+        int rankA = rank(a);
+        int rankB = rank(b);
+        if (rankA != rankB) return Integer.compare(rankA, rankB);
+
+        switch (rankA) {
+            case NULL: return 0;
+            case BOOLEAN: return Boolean.compare((Boolean) a, (Boolean) b);
+            case NUMBER: return compareNumbers((Number) a, (Number) b);
+            case STRING: return ((String) a).compareTo((String) b);
+            default: return a.toString().compareTo(b.toString());
+        }
+    }
+
+    // Compares value against bound from the value's side
+    private static int compareBound(TypeBound bound, Object value) {
+        if (value instanceof TypeBound) {
+            TypeBound other = (TypeBound) value;
+            int cmp = Integer.compare(other.rank, bound.rank);
+            return cmp != 0 ? cmp : Boolean.compare(other.end, bound.end);
+        }
+        int rank = rank(value);
+        if (rank != bound.rank) return Integer.compare(rank, bound.rank);
+        return bound.end ? -1 : 1;
+    }
+
+    private static int rank(Object value) {
+        if (value == null) return NULL;
+        if (value instanceof Boolean) return BOOLEAN;
+        if (value instanceof Number) return NUMBER;
+        if (value instanceof String) return STRING;
+        if (value instanceof TypeBound) return ((TypeBound) value).rank;
+        return OTHER;
+    }
+
+    /**
+     * Same-kind pairs compare directly; every mixed pair of finite numbers compares exactly
+     * through {@link #toBigDecimal}, so the order stays transitive across types. NaN and the
+     * infinities have no decimal form and keep {@link Double#compare}'s place for them.
+     */
+    private static int compareNumbers(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return Long.compare(a.longValue(), b.longValue());
+        }
+        if (isFloating(a) && isFloating(b)) {
+            double x = a.doubleValue();
+            double y = b.doubleValue();
+            // -0.0 equals 0.0 here as it does against the integer 0
+            return x == y ? 0 : Double.compare(x, y);
+        }
+        BigDecimal x = toBigDecimal(a);
+        BigDecimal y = toBigDecimal(b);
+        if (x != null && y != null) return x.compareTo(y);
+        // A finite number stands in as 0, below +Infinity and NaN and above -Infinity
+        return Double.compare(x != null ? 0 : a.doubleValue(), y != null ? 0 : b.doubleValue());
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    private static boolean isFloating(Number n) {
+        return n instanceof Double || n instanceof Float;
+    }
+
+    /**
+     * Doubles convert through their shortest decimal form rather than their exact binary
+     * value, so a double parsed from "0.1" equals the decimal 0.1 that a stored JSON
+     * document holds; the conversion keeps the order of doubles. Null for NaN and the
+     * infinities, which have no decimal form.
+     */
+    private static BigDecimal toBigDecimal(Number n) {
+        if (n instanceof BigDecimal) return (BigDecimal) n;
+        if (n instanceof BigInteger) return new BigDecimal((BigInteger) n);
+        if (isIntegral(n)) return BigDecimal.valueOf(n.longValue());
+        double d = n.doubleValue();
+        return Double.isFinite(d) ? BigDecimal.valueOf(d) : null;
+    }
+}
@@ -3,131 +3,435 @@ package baas.core;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
-public class WAL {
+/**
+ * Write-ahead log with group commit. Writers enqueue encoded records and get a future;
+ * a single flusher thread writes whatever has accumulated and covers the whole batch
+ * with one fsync before completing the futures. Records that queue while an fsync is
+ * running form the next batch, so concurrent writers share fsyncs without the flusher
+ * waiting for them. See {@link Durability} for the
+ * per-record guarantees and {@link WALFormat} for the binary record layout.
+ */
+public final class WAL {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+    public static final long DEFAULT_MAX_BATCH_DELAY_MS = 0;
+    public static final long DEFAULT_ASYNC_SYNC_INTERVAL_MS = 200;
+
     private final String filePath;
     private final File walFile;
     private RandomAccessFile raf;
     private final Object fileLock = new Object();
 
-    private long checkpointPosition = 0;
+    // LSN of the last record written to disk; only the flusher advances it once the WAL is open
+    private volatile long lastLsn = 0;
     private final int maxWalSizeBytes;
     private final int walRetention;
 
+    // Group commit
+    private final int maxBatchSize;
+    private final long maxBatchDelayMs;
+    private final long asyncSyncIntervalMs;
+    private long lastSyncNanos = System.nanoTime();
+    private boolean unsynced = false;
+    private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+    // Writers inside append that have not queued their record yet
+    private final AtomicInteger appending = new AtomicInteger();
+    private final Thread flusher;
+    private volatile boolean running = true;
+    // Set when a failed write could not be rolled back; every later batch fails with it
+    private IOException failure;
+
+    private static class PendingRecord {
+        final byte type;
+        final byte[] payload;
+        final Durability durability;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        PendingRecord(byte type, byte[] payload, Durability durability) {
+            this.type = type;
+            this.payload = payload;
+            this.durability = durability;
+        }
+    }
+
     public WAL(String filePath, int maxWalSizeMB, int walRetentionFiles) throws IOException {
+        this(filePath, maxWalSizeMB, walRetentionFiles,
+                DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_DELAY_MS, DEFAULT_ASYNC_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * @param maxBatchSize        most records covered by a single fsync
+     * @param maxBatchDelayMs     how long the flusher may linger for writers that are still encoding
+     *                            their records when a batch is not full; 0, the default, flushes
+     *                            whatever is queued immediately
+     * @param asyncSyncIntervalMs how often records written with {@link Durability#ASYNC} are fsynced
+     */
+    public WAL(String filePath, int maxWalSizeMB, int walRetentionFiles,
+               int maxBatchSize, long maxBatchDelayMs, long asyncSyncIntervalMs) throws IOException {
         this.filePath = filePath;
         this.maxWalSizeBytes = maxWalSizeMB * 1024 * 1024;
         this.walRetention = walRetentionFiles;
-        this.walFile = new File(filePath);
-        initializeFile();
+        this.walFile = new File(filePath).getAbsoluteFile();
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxBatchDelayMs = Math.max(0, maxBatchDelayMs);
+        this.asyncSyncIntervalMs = Math.max(1, asyncSyncIntervalMs);
+        openLiveFile();
+
+        this.flusher = new Thread(this::flushLoop, "baas-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
-    private void initializeFile() throws IOException {
-        if (!walFile.exists()) {
-            walFile.createNewFile();
+    /**
+     * Opens the live segment. A legacy JSON log is moved aside as a rotated segment so it is
+     * still replayed, and a torn record at the end of a binary segment is truncated.
+     */
+    private void openLiveFile() throws IOException {
+        if (WALFormat.isLegacy(walFile)) {
+            Files.move(walFile.toPath(), nextRotatedPath());
+        }
+
+        if (WALFormat.isBinary(walFile) && walFile.length() >= WALFormat.FILE_HEADER_SIZE) {
+            lastLsn = WALFormat.readBaseLsn(walFile) - 1;
+            long end = scanSegment(walFile);
+            this.raf = new RandomAccessFile(walFile, "rw");
+            if (end < raf.length()) {
+                System.err.println("WAL: truncating torn tail of " + walFile.getName() + " at offset " + end);
+                raf.setLength(end);
+            }
+            raf.seek(end);
+            return;
+        }
+
+        // New, empty or header-less live file: continue numbering after the newest rotated segment
+        List<File> rotated = getRotatedLogs();
+        for (int i = rotated.size() - 1; i >= 0; i--) {
+            File segment = rotated.get(i);
+            if (WALFormat.isBinary(segment)) {
+                lastLsn = WALFormat.readBaseLsn(segment) - 1;
+                scanSegment(segment);
+                break;
+            }
         }
+        createLiveFile();
+    }
+
+    private void createLiveFile() throws IOException {
         this.raf = new RandomAccessFile(walFile, "rw");
-        this.raf.seek(raf.length());
+        raf.setLength(0);
+        raf.write(WALFormat.fileHeader(lastLsn + 1));
+        raf.getFD().sync();
     }
 
-    public void log(Map<String, Object> entry) throws IOException {
-        synchronized (fileLock) {
+    public CompletableFuture<Void> append(Map<String, Object> entry) {
+        return append(entry, Durability.GROUP);
+    }
+
+    /**
+     * Enqueues a record for the flusher. For {@link Durability#SYNC} and {@link Durability#GROUP}
+     * the returned future completes once the record has been written and fsynced; for
+     * {@link Durability#ASYNC} it is already complete. Records are written in the order they
+     * were appended, whatever their durability.
+     */
+    public CompletableFuture<Void> append(Map<String, Object> entry, Durability durability) {
+        if (durability == Durability.NONE) {
+            return CompletableFuture.completedFuture(null);
+        }
+        PendingRecord record;
+        appending.incrementAndGet();
+        try {
             entry.put("timestamp", System.currentTimeMillis());
-            String jsonLine = new JSONObject(entry).toString() + "\n";
-            raf.write(jsonLine.getBytes());
-            raf.getFD().sync();
+            // The operation travels in the record's type tag rather than in the payload
+            Map<String, Object> body = new HashMap<>(entry);
+            body.remove("operation");
+            record = new PendingRecord(WALFormat.TYPE_INSERT, DocumentCodec.encode(body), durability);
+            if (durability == Durability.ASYNC) {
+                record.durable.complete(null);
+            }
+            pending.add(record);
+        } finally {
+            appending.decrementAndGet();
+        }
+        if (!running && !flusher.isAlive()) {
+            failPending();
+        }
+        return record.durable;
+    }
+
+    // Appends a record and blocks until it is durable
+    public void log(Map<String, Object> entry) throws IOException {
+        awaitDurable(append(entry));
+    }
+
+    public static void awaitDurable(CompletableFuture<Void> durable) throws IOException {
+        try {
+            durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for WAL flush", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("WAL flush failed", cause);
+        }
+    }
+
+    private void flushLoop() {
+        List<PendingRecord> batch = new ArrayList<>(maxBatchSize);
+        while (running || !pending.isEmpty()) {
+            try {
+                PendingRecord first = pending.poll(Math.min(100, asyncSyncIntervalMs), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    syncIfDue();
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, maxBatchSize - batch.size());
 
-            // Rotate if needed
-            if (raf.length() >= maxWalSizeBytes) {
-                rotate();
+                // Linger only for writers already encoding a record, unless someone asked for SYNC
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMs);
+                while (batch.size() < maxBatchSize && appending.get() > 0 && !containsSync(batch)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    PendingRecord next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    pending.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                if (batch.isEmpty()) continue;
             }
+
+            writeBatch(batch);
+            batch.clear();
         }
+        syncIfDue();
     }
 
-    public void markCheckpoint() throws IOException {
-        synchronized (fileLock) {
-            this.checkpointPosition = raf.getFilePointer();
+    private static boolean containsSync(List<PendingRecord> batch) {
+        for (PendingRecord record : batch) {
+            if (record.durability == Durability.SYNC) return true;
         }
+        return false;
     }
 
-    public void recoverAfterCheckpoint(Consumer<Map<String, Object>> processor) throws IOException {
+    private void writeBatch(List<PendingRecord> batch) {
+        try {
+            int size = 0;
+            boolean mustSync = false;
+            for (PendingRecord record : batch) {
+                size += WALFormat.RECORD_HEADER_SIZE + WALFormat.BODY_HEADER_SIZE + record.payload.length;
+                mustSync |= record.durability != Durability.ASYNC;
+            }
+
+            // LSNs are assigned here, in queue order, so they always match the file order
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(size);
+            long lsn = lastLsn;
+            for (PendingRecord record : batch) {
+                buffer.write(WALFormat.encodeRecord(record.type, ++lsn, record.payload));
+            }
+
+            synchronized (fileLock) {
+                if (failure != null) throw failure;
+                long start = raf.getFilePointer();
+                try {
+                    raf.write(buffer.toByteArray());
+                } catch (IOException e) {
+                    discardFrom(start, e);
+                    throw e;
+                }
+                lastLsn = lsn;
+                unsynced = true;
+                if (mustSync || !running) {
+                    sync();
+                }
+
+                // Rotate if needed
+                if (raf.length() >= maxWalSizeBytes) {
+                    sync();
+                    rotate();
+                }
+            }
+            for (PendingRecord record : batch) record.durable.complete(null);
+        } catch (IOException e) {
+            for (PendingRecord record : batch) record.durable.completeExceptionally(e);
+        }
+        syncIfDue();
+    }
+
+    /**
+     * Cuts a partially written batch off the live segment, so the next batch reuses its LSNs
+     * on a clean tail instead of following bytes that recovery would truncate together with
+     * everything after them. Caller must hold fileLock.
+     */
+    private void discardFrom(long start, IOException cause) {
+        try {
+            raf.setLength(start);
+            raf.seek(start);
+        } catch (IOException e) {
+            System.err.println("WAL: cannot discard a failed write, rejecting further appends: " + e.getMessage());
+            failure = new IOException("WAL is unusable after a failed write", cause);
+        }
+    }
+
+    // Background fsync for ASYNC records
+    private void syncIfDue() {
         synchronized (fileLock) {
-            raf.seek(checkpointPosition);
-            String line;
-            while ((line = raf.readLine()) != null) {
-                processor.accept(new JSONObject(line).toMap());
+            if (!unsynced) return;
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSyncNanos);
+            if (elapsedMs < asyncSyncIntervalMs && running) return;
+            try {
+                sync();
+            } catch (IOException e) {
+                System.err.println("WAL background sync failed: " + e.getMessage());
             }
         }
     }
 
+    // Caller must hold fileLock
+    private void sync() throws IOException {
+        raf.getFD().sync();
+        unsynced = false;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    // LSN of the last record written to the log
+    public long currentLsn() {
+        return lastLsn;
+    }
+
     public void recover(Consumer<Map<String, Object>> processor) throws IOException {
+        recover(0, processor);
+    }
+
+    /**
+     * Replays every record with an LSN greater than {@code afterLsn}, oldest first. Segments
+     * that lie entirely at or below it are not read at all; legacy JSON segments carry no LSNs
+     * and predate every checkpoint, so they are only replayed when {@code afterLsn} is 0.
+     */
+    public void recover(long afterLsn, Consumer<Map<String, Object>> processor) throws IOException {
         synchronized (fileLock) {
-            // First replay rotated logs
-            for (File rotated : getRotatedLogs()) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(rotated))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        processor.accept(new JSONObject(line).toMap());
+            try (WALReplayer replayer = new WALReplayer(true)) {
+                // First replay rotated logs
+                List<File> rotated = getRotatedLogs();
+                for (int i = 0; i < rotated.size(); i++) {
+                    File segment = rotated.get(i);
+                    if (!WALFormat.isBinary(segment)) {
+                        if (afterLsn == 0) replayLegacy(segment, processor);
+                        continue;
                     }
+                    File next = i + 1 < rotated.size() ? rotated.get(i + 1) : walFile;
+                    if (segmentBaseLsn(next) - 1 <= afterLsn) continue;
+                    replayRotated(replayer, segment, afterLsn, processor);
                 }
-            }
 
-            // Then replay current WAL
-            raf.seek(0);
-            String line;
-            while ((line = raf.readLine()) != null) {
-                processor.accept(new JSONObject(line).toMap());
+                // Then replay current WAL
+                replayer.replay(walFile, WALFormat.FILE_HEADER_SIZE, afterLsn, processor);
             }
         }
     }
 
-    public void replayAfterCheckpoint(StorageService storage) throws IOException {
-        recoverAfterCheckpoint(entry -> {
-            String collection = entry.get("collection").toString();
-            String id = entry.get("id").toString();
+    // First LSN a segment can contain; unknown for legacy segments
+    private static long segmentBaseLsn(File segment) throws IOException {
+        return WALFormat.isBinary(segment) ? WALFormat.readBaseLsn(segment) : Long.MAX_VALUE;
+    }
 
-            @SuppressWarnings("unchecked")
-            Map<String, Object> document = (Map<String, Object>) entry.get("document");
+    private void replayRotated(WALReplayer replayer, File segment, long afterLsn,
+                               Consumer<Map<String, Object>> processor) throws IOException {
+        long end = replayer.replay(segment, WALFormat.FILE_HEADER_SIZE, afterLsn, processor);
+        if (end < segment.length()) {
+            System.err.println("WAL: ignoring corrupt tail of " + segment.getName() + " at offset " + end);
+        }
+    }
 
-            storage.insertDocument(collection, id, document, false); // don't re-log
-        });
+    // Validates a segment and advances lastLsn past its records; returns the end of its intact prefix
+    private long scanSegment(File segment) throws IOException {
+        try (WALReplayer replayer = new WALReplayer(false)) {
+            long end = replayer.replay(segment, WALFormat.FILE_HEADER_SIZE, null);
+            lastLsn = Math.max(lastLsn, replayer.getLastLsn());
+            return end;
+        }
+    }
+
+    // Replays a JSON-lines log written before the binary format
+    private void replayLegacy(File file, Consumer<Map<String, Object>> processor) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                processor.accept(new JSONObject(line).toMap());
+            }
+        }
     }
 
-    public void rotate() throws IOException {
+    /**
+     * Closes the live segment and starts a new one. Nothing happens if the live segment holds
+     * no records yet.
+     * @return LSN of the first record of the new live segment
+     */
+    public long rotate() throws IOException {
         synchronized (fileLock) {
+            if (raf.length() <= WALFormat.FILE_HEADER_SIZE) {
+                return lastLsn + 1;
+            }
+            if (unsynced) {
+                sync();
+            }
             raf.close();
 
-            String rotatedName = filePath + "." + System.currentTimeMillis() + ".log";
-            Files.move(Paths.get(filePath), Paths.get(rotatedName), StandardCopyOption.REPLACE_EXISTING);
-
-            cleanupOldLogs();
+            Files.move(Paths.get(filePath), nextRotatedPath());
 
             // Open new WAL
-            initializeFile();
+            createLiveFile();
+            return lastLsn + 1;
         }
     }
 
-    private void cleanupOldLogs() {
-        File dir = walFile.getParentFile();
-        String baseName = walFile.getName();
-
-        File[] rotated = dir.listFiles(f ->
-                f.getName().startsWith(baseName + ".") && f.getName().endsWith(".log"));
+    /**
+     * Deletes rotated segments whose records all have an LSN of at most {@code lsn}, i.e. are
+     * covered by a durable checkpoint. The newest {@code walRetention} covered segments are kept.
+     */
+    public void releaseThrough(long lsn) throws IOException {
+        synchronized (fileLock) {
+            List<File> rotated = getRotatedLogs();
+            List<File> covered = new ArrayList<>();
+            for (int i = 0; i < rotated.size(); i++) {
+                File next = i + 1 < rotated.size() ? rotated.get(i + 1) : walFile;
+                boolean legacy = !WALFormat.isBinary(rotated.get(i));
+                if (legacy || segmentBaseLsn(next) - 1 <= lsn) {
+                    covered.add(rotated.get(i));
+                }
+            }
+            for (int i = 0; i < covered.size() - walRetention; i++) {
+                Files.deleteIfExists(covered.get(i).toPath());
+            }
+        }
+    }
 
-        if (rotated != null && rotated.length > walRetention) {
-            Arrays.stream(rotated)
-                    .sorted(Comparator.comparingLong(File::lastModified).reversed())
-                    .skip(walRetention)
-                    .forEach(File::delete);
+    // Rotated names sort by creation time; the counter only matters for same-millisecond rotations
+    private java.nio.file.Path nextRotatedPath() {
+        long stamp = System.currentTimeMillis();
+        java.nio.file.Path rotated;
+        while (Files.exists(rotated = Paths.get(filePath + "." + stamp + ".log"))) {
+            stamp++;
         }
+        return rotated;
     }
 
     private List<File> getRotatedLogs() {
@@ -151,6 +455,23 @@ public class WAL {
 
 
     public void close() throws IOException {
-        if (raf != null) raf.close();
+        // Let the flusher drain everything that was appended before closing the file
+        running = false;
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failPending();
+        synchronized (fileLock) {
+            if (raf != null) raf.close();
+        }
+    }
+
+    private void failPending() {
+        PendingRecord record;
+        while ((record = pending.poll()) != null) {
+            record.durable.completeExceptionally(new IOException("WAL is closed"));
+        }
     }
 }
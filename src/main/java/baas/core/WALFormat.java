@@ -0,0 +1,88 @@
+package baas.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk layout of binary WAL segments.
+ * <pre>
+ * segment := header record*
+ * header  := "BWAL" version:u8 baseLsn:i64
+ * record  := length:i32 crc32c:i32 body          (length and crc cover body)
+ * body    := type:u8 lsn:i64 payload             (payload is a DocumentCodec map)
+ * </pre>
+ * Files that do not start with the magic are legacy JSON-lines logs.
+ */
+final class WALFormat {
+    static final byte[] MAGIC = {'B', 'W', 'A', 'L'};
+    static final byte VERSION = 1;
+    static final int FILE_HEADER_SIZE = MAGIC.length + 1 + 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int BODY_HEADER_SIZE = 1 + 8;
+    static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    static final byte TYPE_INSERT = 1;
+
+    private WALFormat() {
+    }
+
+    static byte[] fileHeader(long baseLsn) {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.put(MAGIC).put(VERSION).putLong(baseLsn);
+        return header.array();
+    }
+
+    // Frames one record: length, checksum, type, LSN and payload
+    static byte[] encodeRecord(byte type, long lsn, byte[] payload) {
+        int bodyLength = BODY_HEADER_SIZE + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyLength);
+        record.putInt(bodyLength);
+        record.putInt(0); // checksum placeholder
+        record.put(type).putLong(lsn).put(payload);
+
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), RECORD_HEADER_SIZE, bodyLength);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    static boolean checksumMatches(ByteBuffer body, int expected) {
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        return (int) crc.getValue() == expected;
+    }
+
+    /**
+     * @return true if the file starts with the binary segment magic; empty or
+     * missing files return false
+     */
+    static boolean isBinary(File file) throws IOException {
+        if (!file.exists() || file.length() < MAGIC.length) return false;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] magic = in.readNBytes(MAGIC.length);
+            return Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    // Legacy logs hold one JSON object per line
+    static boolean isLegacy(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) return false;
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read() == '{';
+        }
+    }
+
+    // Reads the base LSN from a segment header; the caller has checked the magic
+    static long readBaseLsn(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.skipNBytes(MAGIC.length);
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported WAL version " + version + " in " + file.getName());
+            }
+            return in.readLong();
+        }
+    }
+}
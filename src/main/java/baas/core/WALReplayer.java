@@ -0,0 +1,247 @@
+package baas.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Replays binary WAL segments through a {@link FileChannel} in large chunks. Records are
+ * framed on the calling thread, checksummed and decoded in parallel, and handed to the
+ * processor strictly in log order.
+ */
+class WALReplayer implements AutoCloseable {
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int BATCH_BYTES = 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final ExecutorService decoders;
+    private final int maxInFlight;
+    private final boolean reportProgress;
+
+    private long lastLsn = 0;
+    private long bytesReplayed = 0;
+    private long recordsReplayed = 0;
+    private final long startNanos = System.nanoTime();
+    private long lastReportNanos = startNanos;
+
+    // Framed records copied out of the read buffer, waiting to be decoded
+    private static class Batch {
+        final byte[] bytes;
+        final long fileOffset;
+        final int records;
+
+        Batch(byte[] bytes, long fileOffset, int records) {
+            this.bytes = bytes;
+            this.fileOffset = fileOffset;
+            this.records = records;
+        }
+    }
+
+    private static class Decoded {
+        final List<Map<String, Object>> entries = new ArrayList<>();
+        long maxLsn = 0;
+        int records = 0;
+        int bytes = 0;
+        // File offset of the first record that failed its checksum, or -1
+        long corruptAt = -1;
+    }
+
+    WALReplayer(boolean reportProgress) {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        this.decoders = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "baas-wal-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxInFlight = threads * 2;
+        this.reportProgress = reportProgress;
+    }
+
+    /**
+     * Replays records from {@code offset}, stopping at the first record that is incomplete or
+     * fails its checksum. A {@code null} processor only validates records.
+     * @return offset just past the last intact record
+     */
+    long replay(File file, long offset, Consumer<Map<String, Object>> processor) throws IOException {
+        return replay(file, offset, 0, processor);
+    }
+
+    /**
+     * Like {@link #replay(File, long, Consumer)}, but records with an LSN of at most
+     * {@code afterLsn} are validated without being decoded or passed to the processor.
+     */
+    long replay(File file, long offset, long afterLsn, Consumer<Map<String, Object>> processor) throws IOException {
+        Deque<Future<Decoded>> inFlight = new ArrayDeque<>();
+        long intactEnd = offset;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.position(offset);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            long bufferOffset = offset; // file offset of buffer index 0
+            boolean torn = false;
+
+            while (!torn) {
+                int read = channel.read(buffer);
+                buffer.flip();
+
+                // Frame complete records and ship them to the decoders in ~1 MB batches
+                int batchStart = 0;
+                int batchRecords = 0;
+                int position = 0;
+                while (buffer.limit() - position >= WALFormat.RECORD_HEADER_SIZE) {
+                    int length = buffer.getInt(position);
+                    if (length < WALFormat.BODY_HEADER_SIZE || length > WALFormat.MAX_RECORD_SIZE) {
+                        torn = true;
+                        break;
+                    }
+                    int recordSize = WALFormat.RECORD_HEADER_SIZE + length;
+                    if (buffer.limit() - position < recordSize) break;
+
+                    position += recordSize;
+                    batchRecords++;
+                    if (position - batchStart >= BATCH_BYTES) {
+                        submit(inFlight, buffer, bufferOffset, batchStart, position, batchRecords, afterLsn, processor);
+                        intactEnd = drain(inFlight, maxInFlight, processor, intactEnd);
+                        if (intactEnd < 0) return -intactEnd - 1;
+                        batchStart = position;
+                        batchRecords = 0;
+                    }
+                }
+                if (batchRecords > 0) {
+                    submit(inFlight, buffer, bufferOffset, batchStart, position, batchRecords, afterLsn, processor);
+                }
+
+                if (read < 0) break; // whatever is left is a torn tail
+
+                buffer.position(position);
+                buffer.compact();
+                bufferOffset += position;
+                if (!buffer.hasRemaining()) {
+                    // A single record larger than the buffer
+                    ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+        }
+
+        intactEnd = drain(inFlight, 0, processor, intactEnd);
+        return intactEnd < 0 ? -intactEnd - 1 : intactEnd;
+    }
+
+    private void submit(Deque<Future<Decoded>> inFlight, ByteBuffer buffer, long bufferOffset,
+                        int from, int to, int records, long afterLsn, Consumer<Map<String, Object>> processor) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        Batch batch = new Batch(bytes, bufferOffset + from, records);
+        boolean decode = processor != null;
+        inFlight.addLast(decoders.submit(() -> decode(batch, decode, afterLsn)));
+    }
+
+    /**
+     * Applies decoded batches in order until at most {@code keep} remain in flight.
+     * @return end offset of the last applied record, or {@code -(offset + 1)} if a checksum
+     * failure at {@code offset} ended the replay
+     */
+    private long drain(Deque<Future<Decoded>> inFlight, int keep, Consumer<Map<String, Object>> processor,
+                       long intactEnd) throws IOException {
+        while (inFlight.size() > keep) {
+            Decoded decoded;
+            try {
+                decoded = inFlight.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during WAL replay", e);
+            } catch (ExecutionException e) {
+                throw new IOException("WAL record could not be decoded", e.getCause());
+            }
+
+            if (processor != null) {
+                for (Map<String, Object> entry : decoded.entries) {
+                    processor.accept(entry);
+                }
+            }
+            lastLsn = Math.max(lastLsn, decoded.maxLsn);
+            recordsReplayed += decoded.records;
+            bytesReplayed += decoded.bytes;
+            intactEnd += decoded.bytes;
+            reportProgress(false);
+
+            if (decoded.corruptAt >= 0) {
+                for (Future<Decoded> pending : inFlight) pending.cancel(true);
+                inFlight.clear();
+                return -decoded.corruptAt - 1;
+            }
+        }
+        return intactEnd;
+    }
+
+    private static Decoded decode(Batch batch, boolean decodePayload, long afterLsn) {
+        Decoded decoded = new Decoded();
+        ByteBuffer buffer = ByteBuffer.wrap(batch.bytes);
+        for (int i = 0; i < batch.records; i++) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            ByteBuffer body = buffer.slice(buffer.position(), length);
+            if (!WALFormat.checksumMatches(body, checksum)) {
+                decoded.corruptAt = batch.fileOffset + start;
+                return decoded;
+            }
+            body.get(); // type: inserts are the only record type so far
+            long lsn = body.getLong();
+            decoded.maxLsn = Math.max(decoded.maxLsn, lsn);
+            if (decodePayload && lsn > afterLsn) {
+                Map<String, Object> entry = DocumentCodec.decode(body);
+                entry.put("operation", "insert");
+                decoded.entries.add(entry);
+            }
+            decoded.records++;
+            buffer.position(buffer.position() + length);
+            decoded.bytes = buffer.position();
+        }
+        return decoded;
+    }
+
+    private void reportProgress(boolean done) {
+        if (!reportProgress) return;
+        long now = System.nanoTime();
+        if (!done && now - lastReportNanos < PROGRESS_INTERVAL_NANOS) return;
+        lastReportNanos = now;
+
+        double seconds = Math.max(1e-3, (now - startNanos) / 1e9);
+        double megabytes = bytesReplayed / (1024.0 * 1024.0);
+        System.out.printf("WAL replay%s: %d records, %.1f MB in %.1fs (%.1f MB/s)%n",
+                done ? " finished" : "", recordsReplayed, megabytes, seconds, megabytes / seconds);
+    }
+
+    long getLastLsn() {
+        return lastLsn;
+    }
+
+    long getRecordsReplayed() {
+        return recordsReplayed;
+    }
+
+    @Override
+    public void close() {
+        if (recordsReplayed > 0) {
+            reportProgress(true);
+        }
+        decoders.shutdownNow();
+    }
+}
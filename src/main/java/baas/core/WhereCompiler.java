@@ -0,0 +1,336 @@
+package baas.core;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Compiles the where conditions of EnhancedQuery into {@link Filter} trees, once per distinct
+ * text: compiled filters are immutable and kept in a small LRU cache keyed by the condition.
+ * <pre>
+ *   condition  := or
+ *   or         := and (OR and)*
+ *   and        := unary (AND unary)*
+ *   unary      := NOT unary | '(' or ')' | comparison
+ *   comparison := field ('=' | '==' | '!=' | '&lt;&gt;' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=') literal
+ *               | field [NOT] IN '(' literal (',' literal)* ')'
+ *               | field [NOT] BETWEEN literal AND literal
+ * </pre>
+ * Keywords are case-insensitive. A field may be a dotted path into nested objects. A literal
+ * is a quoted string, or bare text up to the next keyword, comma or parenthesis. Bare text that
+ * reads as a number, {@code true}, {@code false} or {@code null} takes that type for ranges;
+ * for equality and IN it matches both that value and the same text stored as a string, as
+ * earlier versions did. Numbers are typed as stored JSON holds them, as longs where they fit
+ * and otherwise as BigInteger or BigDecimal, so {@code price = 0.1} matches a stored 0.1
+ * exactly. Comparisons never fall back to comparing numbers as strings.
+ */
+public final class WhereCompiler {
+    private final Map<String, Filter> cache;
+
+    public WhereCompiler(int capacity) {
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Filter> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the filter, or null for an empty condition, which matches every document
+     * @throws IllegalArgumentException if the condition is not valid
+     */
+    public Filter compile(String condition) {
+        String text = condition.trim();
+        if (text.isEmpty()) return null;
+        synchronized (cache) {
+            Filter cached = cache.get(text);
+            if (cached != null) return cached;
+        }
+        Filter filter = new Parser(text).parse();
+        synchronized (cache) {
+            cache.put(text, filter);
+        }
+        return filter;
+    }
+
+    private enum TokenType { WORD, STRING, OPERATOR, OPEN, CLOSE, COMMA, END }
+
+    private static final class Token {
+        final TokenType type;
+        final String text;
+        final int start;
+        final int end;
+
+        Token(TokenType type, String text, int start, int end) {
+            this.type = type;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean isKeyword(String keyword) {
+            return type == TokenType.WORD && text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    // A literal as written: its text, and whether it was quoted
+    private static final class Literal {
+        final String text;
+        final boolean quoted;
+
+        Literal(String text, boolean quoted) {
+            this.text = text;
+            this.quoted = quoted;
+        }
+
+        // The typed value of bare text, or the text itself
+        Object typed() {
+            if (quoted) return text;
+            switch (text.toLowerCase(Locale.ROOT)) {
+                case "true": return Boolean.TRUE;
+                case "false": return Boolean.FALSE;
+                case "null": return null;
+                default: break;
+            }
+            if (text.matches("-?\\d+")) {
+                try {
+                    return Long.parseLong(text);
+                } catch (NumberFormatException e) {
+                    return new BigInteger(text);
+                }
+            }
+            if (text.matches("-?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?")) {
+                return new BigDecimal(text);
+            }
+            return text;
+        }
+
+        // The values an equality with this literal matches
+        List<Object> alternatives() {
+            Object typed = typed();
+            if (typed instanceof String) return List.of(text);
+            return Arrays.asList(text, typed);
+        }
+    }
+
+    private static final class Parser {
+        private static final Set<String> KEYWORDS = Set.of("and", "or", "not", "in", "between");
+
+        private final String text;
+        private final List<Token> tokens = new ArrayList<>();
+        private int position = 0;
+
+        Parser(String text) {
+            this.text = text;
+            tokenize();
+        }
+
+        Filter parse() {
+            Filter filter = or();
+            if (peek().type != TokenType.END) throw error("unexpected '" + peek().text + "'");
+            return filter;
+        }
+
+        private Filter or() {
+            List<Filter> children = new ArrayList<>();
+            add(children, and(), Filter.Kind.OR);
+            while (peek().isKeyword("or")) {
+                position++;
+                add(children, and(), Filter.Kind.OR);
+            }
+            return Filter.or(children);
+        }
+
+        private Filter and() {
+            List<Filter> children = new ArrayList<>();
+            add(children, unary(), Filter.Kind.AND);
+            while (peek().isKeyword("and")) {
+                position++;
+                add(children, unary(), Filter.Kind.AND);
+            }
+            return Filter.and(children);
+        }
+
+        // Flattens nested ANDs and ORs so the planner sees every top-level condition
+        private static void add(List<Filter> children, Filter child, Filter.Kind kind) {
+            if (child.kind == kind) {
+                children.addAll(child.children);
+            } else {
+                children.add(child);
+            }
+        }
+
+        private Filter unary() {
+            Token token = peek();
+            if (token.isKeyword("not")) {
+                position++;
+                return Filter.not(unary());
+            }
+            if (token.type == TokenType.OPEN) {
+                position++;
+                Filter inner = or();
+                expect(TokenType.CLOSE, "')'");
+                return inner;
+            }
+            return comparison();
+        }
+
+        private Filter comparison() {
+            Token fieldToken = next();
+            if (fieldToken.type != TokenType.WORD || KEYWORDS.contains(fieldToken.text.toLowerCase(Locale.ROOT))) {
+                throw error("expected a field name at '" + fieldToken.text + "'", fieldToken);
+            }
+            String field = fieldToken.text;
+
+            boolean negated = false;
+            if (peek().isKeyword("not")) {
+                position++;
+                negated = true;
+                if (!peek().isKeyword("in") && !peek().isKeyword("between")) throw error("expected IN or BETWEEN after NOT");
+            }
+
+            if (peek().isKeyword("in")) {
+                position++;
+                expect(TokenType.OPEN, "'('");
+                List<Object> values = new ArrayList<>();
+                do {
+                    values.addAll(literal().alternatives());
+                } while (accept(TokenType.COMMA));
+                expect(TokenType.CLOSE, "')'");
+                return Filter.of(negated ? Condition.notIn(field, values) : Condition.in(field, values));
+            }
+
+            if (peek().isKeyword("between")) {
+                position++;
+                Object low = bound(literal());
+                if (!peek().isKeyword("and")) throw error("expected AND in BETWEEN");
+                position++;
+                Object high = bound(literal());
+                if (!negated) return Filter.of(Condition.range(field, low, true, high, true));
+                return Filter.or(List.of(
+                        Filter.of(Condition.range(field, null, false, low, false)),
+                        Filter.of(Condition.range(field, high, false, null, false))));
+            }
+
+            Token operator = next();
+            if (operator.type != TokenType.OPERATOR) throw error("expected an operator after '" + field + "'", operator);
+            Literal literal = literal();
+            switch (operator.text) {
+                case "=":
+                case "==":
+                    return equality(field, literal.alternatives(), false);
+                case "!=":
+                case "<>":
+                    return equality(field, literal.alternatives(), true);
+                case ">": return Filter.of(Condition.range(field, bound(literal), false, null, false));
+                case ">=": return Filter.of(Condition.range(field, bound(literal), true, null, false));
+                case "<": return Filter.of(Condition.range(field, null, false, bound(literal), false));
+                case "<=": return Filter.of(Condition.range(field, null, false, bound(literal), true));
+                default: throw error("unknown operator '" + operator.text + "'", operator);
+            }
+        }
+
+        private static Filter equality(String field, List<Object> values, boolean negated) {
+            if (values.size() == 1) {
+                return Filter.of(negated ? Condition.notEqualTo(field, values.get(0)) : Condition.equalTo(field, values.get(0)));
+            }
+            return Filter.of(negated ? Condition.notIn(field, values) : Condition.in(field, values));
+        }
+
+        private Object bound(Literal literal) {
+            Object value = literal.typed();
+            if (value == null) throw error("null cannot bound a range");
+            return value;
+        }
+
+        // A quoted string, or bare words up to the next keyword, comma or parenthesis
+        private Literal literal() {
+            Token first = peek();
+            if (first.type == TokenType.STRING) {
+                position++;
+                return new Literal(first.text, true);
+            }
+            if (first.type != TokenType.WORD || isKeyword(first)) throw error("expected a value", first);
+            Token last = first;
+            while (peek().type == TokenType.WORD && !isKeyword(peek())) {
+                last = next();
+            }
+            return new Literal(text.substring(first.start, last.end), false);
+        }
+
+        private static boolean isKeyword(Token token) {
+            return KEYWORDS.contains(token.text.toLowerCase(Locale.ROOT));
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')' || c == ',') {
+                    TokenType type = c == '(' ? TokenType.OPEN : c == ')' ? TokenType.CLOSE : TokenType.COMMA;
+                    tokens.add(new Token(type, String.valueOf(c), i, i + 1));
+                    i++;
+                } else if (c == '\'' || c == '"') {
+                    StringBuilder value = new StringBuilder();
+                    int start = i++;
+                    while (true) {
+                        if (i >= text.length()) throw error("unterminated string", new Token(TokenType.END, "", start, start));
+                        char d = text.charAt(i++);
+                        if (d == '\\' && i < text.length()) {
+                            value.append(text.charAt(i++));
+                        } else if (d == c) {
+                            break;
+                        } else {
+                            value.append(d);
+                        }
+                    }
+                    tokens.add(new Token(TokenType.STRING, value.toString(), start, i));
+                } else if ("=!<>".indexOf(c) >= 0) {
+                    int start = i++;
+                    if (i < text.length() && (text.charAt(i) == '=' || (c == '<' && text.charAt(i) == '>'))) i++;
+                    tokens.add(new Token(TokenType.OPERATOR, text.substring(start, i), start, i));
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                            && "()',\"=!<>".indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(new Token(TokenType.WORD, text.substring(start, i), start, i));
+                }
+            }
+            tokens.add(new Token(TokenType.END, "end of condition", text.length(), text.length()));
+        }
+
+        private Token peek() {
+            return tokens.get(position);
+        }
+
+        private Token next() {
+            Token token = tokens.get(position);
+            if (token.type != TokenType.END) position++;
+            return token;
+        }
+
+        private boolean accept(TokenType type) {
+            if (peek().type != type) return false;
+            position++;
+            return true;
+        }
+
+        private void expect(TokenType type, String description) {
+            if (!accept(type)) throw error("expected " + description);
+        }
+
+        private IllegalArgumentException error(String message) {
+            return error(message, peek());
+        }
+
+        private IllegalArgumentException error(String message, Token token) {
+            return new IllegalArgumentException("Invalid where condition at position " + (token.start + 1)
+                    + ": " + message + " in \"" + text + "\"");
+        }
+    }
+}
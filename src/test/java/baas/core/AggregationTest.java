@@ -0,0 +1,94 @@
+package baas.core;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregationTest {
+    private static List<Map<String, Object>> prices(int count) {
+        Random random = new Random(7);
+        List<Map<String, Object>> documents = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String price = random.nextInt(1000) + "." + String.format("%02d", random.nextInt(100));
+            documents.add(new JSONObject("{\"price\":" + price + ",\"city\":\"c" + i % 3 + "\"}").toMap());
+        }
+        return documents;
+    }
+
+    private static List<Map<String, Object>> fold(Aggregation aggregation, List<Map<String, Object>> documents) {
+        Aggregation.Partial partial = aggregation.newPartial();
+        documents.forEach(partial::add);
+        return partial.results();
+    }
+
+    @Test
+    void decimalSumAndAverageAreExact() {
+        Aggregation aggregation = Aggregation.parse(List.of(), List.of("sum(price)", "avg(price)"));
+        List<Map<String, Object>> documents = List.of(
+                new JSONObject("{\"price\":0.1}").toMap(),
+                new JSONObject("{\"price\":0.2}").toMap(),
+                new JSONObject("{\"price\":0.3}").toMap());
+        Map<String, Object> result = fold(aggregation, documents).get(0);
+        assertEquals(0, new BigDecimal("0.6").compareTo((BigDecimal) result.get("sum(price)")));
+        assertEquals(0, new BigDecimal("0.2").compareTo((BigDecimal) result.get("avg(price)")));
+    }
+
+    @Test
+    void decimalResultsDoNotDependOnOrderOrSplit() {
+        Aggregation aggregation = Aggregation.parse(List.of("city"), List.of("sum(price)", "avg(price)"));
+        List<Map<String, Object>> documents = prices(5000);
+        List<Map<String, Object>> expected = fold(aggregation, documents);
+
+        List<Map<String, Object>> shuffled = new ArrayList<>(documents);
+        Collections.shuffle(shuffled, new Random(3));
+        assertEquals(expected, fold(aggregation, shuffled));
+
+        // As a parallel scan does: separate partials merged afterwards
+        Aggregation.Partial first = aggregation.newPartial();
+        Aggregation.Partial second = aggregation.newPartial();
+        for (int i = 0; i < shuffled.size(); i++) {
+            (i % 2 == 0 ? first : second).add(shuffled.get(i));
+        }
+        assertEquals(expected, first.merge(second).results());
+    }
+
+    @Test
+    void wholeSumBeyondLongStaysExact() {
+        Aggregation aggregation = Aggregation.parse(List.of(), List.of("sum(n)"));
+        Object sum = fold(aggregation, List.of(Map.of("n", Long.MAX_VALUE), Map.of("n", Long.MAX_VALUE), Map.of("n", 2L)))
+                .get(0).get("sum(n)");
+        assertEquals(new BigDecimal(Long.MAX_VALUE).multiply(BigDecimal.valueOf(2)).add(BigDecimal.valueOf(2)), sum);
+        assertEquals(7L, fold(aggregation, List.of(Map.of("n", 3), Map.of("n", 4L))).get(0).get("sum(n)"));
+    }
+
+    @Test
+    void doublesMakeTheSumADouble() {
+        Aggregation aggregation = Aggregation.parse(List.of(), List.of("sum(n)"));
+        Object sum = fold(aggregation, List.of(Map.of("n", 1), Map.of("n", new BigDecimal("0.5")), Map.of("n", 0.25)))
+                .get(0).get("sum(n)");
+        assertEquals(1.75, sum);
+    }
+
+    @Test
+    void equalNumbersShareAGroup() {
+        Aggregation aggregation = Aggregation.parse(List.of("price"), List.of("count"));
+        List<Map<String, Object>> groups = fold(aggregation, List.of(
+                new JSONObject("{\"price\":2.5}").toMap(),
+                new JSONObject("{\"price\":2.50}").toMap(),
+                Map.of("price", 2.5),
+                new JSONObject("{\"price\":3.0}").toMap(),
+                Map.of("price", 3)));
+        assertEquals(2, groups.size());
+        assertEquals(3L, groups.get(0).get("count"));
+        assertEquals(2L, groups.get(1).get("count"));
+        assertEquals(3L, groups.get(1).get("price"));
+    }
+}
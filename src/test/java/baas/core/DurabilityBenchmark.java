@@ -0,0 +1,81 @@
+package baas.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Measures inserts per second for each {@link Durability}, the numbers quoted in its javadoc.
+ * Each writer thread inserts documents of one string field into its own collection for the
+ * given time; the log lives in a fresh directory under the given one, which decides the disk.
+ * <pre>
+ *   java -cp target/classes:target/test-classes:&lt;dependencies&gt; baas.core.DurabilityBenchmark \
+ *       [directory=/tmp] [writers=1,16] [seconds=5] [recordBytes=100]
+ * </pre>
+ */
+public class DurabilityBenchmark {
+    public static void main(String[] args) throws Exception {
+        File parent = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        String[] writerCounts = (args.length > 1 ? args[1] : "1,16").split(",");
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int recordBytes = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        // Warm up the JIT and the file system, so the first mode measured is not penalized
+        run(parent, Durability.GROUP, Integer.parseInt(writerCounts[0].trim()), Math.max(1, seconds / 2), recordBytes);
+
+        System.out.printf("inserts/s, %d s per run, %d-byte field, log under %s%n", seconds, recordBytes, parent);
+        System.out.printf("%-8s", "");
+        for (String writers : writerCounts) System.out.printf("%14s", writers.trim() + " writer(s)");
+        System.out.println();
+        for (Durability durability : Durability.values()) {
+            System.out.printf("%-8s", durability);
+            for (String writers : writerCounts) {
+                System.out.printf("%,14d", run(parent, durability, Integer.parseInt(writers.trim()), seconds, recordBytes));
+            }
+            System.out.println();
+        }
+    }
+
+    private static long run(File parent, Durability durability, int writers, int seconds, int recordBytes) throws Exception {
+        File dir = Files.createTempDirectory(parent.toPath(), "baas-bench-").toFile();
+        StorageService storage = new StorageService(new File(dir, "wal.log").getPath(), new File(dir, "snapshots").getPath());
+        try {
+            String payload = "x".repeat(recordBytes);
+            AtomicLong inserts = new AtomicLong();
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+            List<Thread> threads = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                String collection = "bench" + w;
+                Thread thread = new Thread(() -> {
+                    long n = 0;
+                    while (System.nanoTime() < end) {
+                        Map<String, Object> document = new HashMap<>();
+                        document.put("payload", payload);
+                        storage.insertDocument(collection, Long.toString(n++), document, durability);
+                    }
+                    inserts.addAndGet(n);
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) thread.join();
+            return inserts.get() / seconds;
+        } finally {
+            storage.close();
+            deleteAll(dir);
+        }
+    }
+
+    private static void deleteAll(File dir) throws IOException {
+        try (Stream<java.nio.file.Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+}
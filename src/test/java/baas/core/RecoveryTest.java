@@ -0,0 +1,107 @@
+package baas.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Restarts from a full snapshot, a delta on top of it and the WAL written after the delta,
+ * with documents overwritten and expired in between, on both storage engines.
+ */
+class RecoveryTest {
+    private static final String COLLECTION = "c";
+    private static final int KEPT = 10;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void restartsFromSnapshotDeltaAndWalInMemory() throws Exception {
+        restart(collection -> new InMemoryDocumentStore());
+    }
+
+    @Test
+    void restartsFromSnapshotDeltaAndWalOnLsm() throws Exception {
+        // The LSM store drops its tables on open, so it depends entirely on snapshots and the WAL
+        restart(LsmDocumentStore.factory(new File(dir, "collections")));
+    }
+
+    private StorageService open(Function<String, DocumentStore> stores) throws IOException {
+        return new StorageService(new File(dir, "wal.log").getPath(), new File(dir, "snapshots").getPath(), stores);
+    }
+
+    private static void put(StorageService storage, String id, Object value) {
+        Map<String, Object> document = new HashMap<>();
+        document.put("v", value);
+        storage.insertDocument(COLLECTION, id, document, Durability.GROUP);
+    }
+
+    private static Object value(StorageService storage, String id) {
+        Map<String, Object> document = storage.getDocument(COLLECTION, id);
+        return document != null ? ((Number) document.get("v")).intValue() : null;
+    }
+
+    private void restart(Function<String, DocumentStore> stores) throws Exception {
+        StorageService storage = open(stores);
+        try {
+            // Enough untouched documents that the second snapshot is a delta, not a full one
+            for (int i = 0; i < KEPT; i++) put(storage, "kept" + i, 1);
+            put(storage, "beforeDelta", 1);
+            put(storage, "afterDelta", 1);
+            put(storage, "both", 1);
+            Map<String, Object> expiring = new HashMap<>();
+            expiring.put("v", 1);
+            expiring.put("_ttl_ms", 1500);
+            storage.insertDocument(COLLECTION, "expired", expiring, Durability.GROUP);
+            storage.takeSnapshot();
+            assertEquals(0, deltas(), "first snapshot is full");
+
+            put(storage, "beforeDelta", 2);
+            put(storage, "both", 2);
+            put(storage, "inDelta", 2);
+            Thread.sleep(1600);
+            assertNull(storage.getDocument(COLLECTION, "expired"));
+            put(storage, "trigger", 2);     // the next writer removes what readers found expired
+            assertFalse(storage.getAllData().get(COLLECTION).containsKey("expired"));
+            storage.takeSnapshot();
+            assertEquals(1, deltas(), "second snapshot is a delta");
+
+            put(storage, "afterDelta", 3);
+            put(storage, "both", 3);
+            put(storage, "inWal", 3);
+        } finally {
+            storage.close();
+        }
+
+        storage = open(stores);
+        try {
+            for (int i = 0; i < KEPT; i++) assertEquals(1, value(storage, "kept" + i));
+            assertEquals(2, value(storage, "beforeDelta"));
+            assertEquals(3, value(storage, "afterDelta"));
+            assertEquals(3, value(storage, "both"));
+            assertEquals(2, value(storage, "inDelta"));
+            assertEquals(2, value(storage, "trigger"));
+            assertEquals(3, value(storage, "inWal"));
+            assertNull(value(storage, "missing"));
+
+            // The delta's tombstone keeps the expired document from coming back out of the full snapshot
+            assertNull(value(storage, "expired"));
+            assertFalse(storage.getAllData().get(COLLECTION).containsKey("expired"));
+            assertEquals(KEPT + 6, storage.getAllData().get(COLLECTION).size());
+        } finally {
+            storage.close();
+        }
+    }
+
+    private int deltas() {
+        String[] names = new File(dir, "snapshots").list((parent, name) -> name.startsWith("delta_"));
+        return names != null ? names.length : 0;
+    }
+}
@@ -0,0 +1,88 @@
+package baas.core;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValueComparatorTest {
+    private static final ValueComparator ORDER = ValueComparator.INSTANCE;
+
+    // Decimals in documents parsed from JSON come back as BigDecimal, as do where-literals
+    private static Object storedPrice(String json) {
+        Object price = new JSONObject(json).toMap().get("price");
+        assertInstanceOf(BigDecimal.class, price);
+        return price;
+    }
+
+    @Test
+    void storedDecimalEqualsDoubleLiteral() {
+        Object stored = storedPrice("{\"price\":0.1}");
+        assertEquals(0, ORDER.compare(stored, 0.1));
+        assertEquals(0, ORDER.compare(0.1, stored));
+        assertEquals(0, ORDER.compare(storedPrice("{\"price\":2.50}"), 2.5));
+    }
+
+    @Test
+    void storedDecimalOrdersAgainstNeighbouringDoubles() {
+        Object stored = storedPrice("{\"price\":0.1}");
+        assertTrue(ORDER.compare(stored, Math.nextUp(0.1)) < 0);
+        assertTrue(ORDER.compare(stored, Math.nextDown(0.1)) > 0);
+        assertTrue(ORDER.compare(stored, 1L) < 0);
+    }
+
+    @Test
+    void inclusiveRangeBoundsIncludeStoredDecimal() {
+        Object stored = storedPrice("{\"price\":0.1}");
+        assertTrue(SecondaryIndex.inRange(stored, 0.1, true, null, false));        // price >= 0.1
+        assertTrue(SecondaryIndex.inRange(stored, null, false, 0.1, true));        // price <= 0.1
+        assertTrue(SecondaryIndex.inRange(stored, 0.1, true, 1L, true));           // BETWEEN 0.1 AND 1
+        assertFalse(SecondaryIndex.inRange(stored, 0.1, false, null, false));      // price > 0.1
+        assertFalse(SecondaryIndex.inRange(stored, null, false, 0.1, false));      // price < 0.1
+    }
+
+    @Test
+    void setOfDoubleLiteralsContainsStoredDecimal() {
+        NavigableSet<Object> values = new TreeSet<>(ORDER);
+        values.addAll(List.of(0.1, 0.3));                                         // price IN (0.1, 0.3)
+        assertTrue(values.contains(storedPrice("{\"price\":0.1}")));
+        assertFalse(values.contains(storedPrice("{\"price\":0.2}")));
+    }
+
+    @Test
+    void decimalLiteralEqualsStoredDouble() {
+        // Documents built in Java keep their doubles; the where-literal 0.1 is a BigDecimal
+        BigDecimal literal = new BigDecimal("0.1");
+        assertEquals(0, ORDER.compare(0.1, literal));
+        assertEquals(0, ORDER.compare(literal, 0.1));
+        assertTrue(ORDER.compare(Math.nextUp(0.1), literal) > 0);
+    }
+
+    @Test
+    void mixedNumbersCompareExactlyAndTransitively() {
+        long whole = 9007199254740993L;                                           // 2^53 + 1, no double holds it
+        double nearest = 9007199254740992.0;
+        BigDecimal decimal = new BigDecimal("9007199254740993");
+        assertTrue(ORDER.compare(whole, nearest) > 0);
+        assertTrue(ORDER.compare(nearest, whole) < 0);
+        assertEquals(0, ORDER.compare(whole, decimal));
+        assertTrue(ORDER.compare(nearest, decimal) < 0);
+        assertEquals(0, ORDER.compare(-0.0, 0.0));
+        assertEquals(0, ORDER.compare(-0.0, 0L));
+    }
+
+    @Test
+    void infinitiesAndNaNSortAroundEveryFiniteNumber() {
+        BigDecimal beyondDouble = new BigDecimal("1e400");
+        assertTrue(ORDER.compare(beyondDouble, new BigDecimal("1e401")) < 0);
+        assertTrue(ORDER.compare(beyondDouble, Double.POSITIVE_INFINITY) < 0);
+        assertTrue(ORDER.compare(beyondDouble.negate(), Double.NEGATIVE_INFINITY) > 0);
+        assertTrue(ORDER.compare(Long.MAX_VALUE, Double.NaN) < 0);
+        assertTrue(ORDER.compare(Double.POSITIVE_INFINITY, Double.NaN) < 0);
+    }
+}
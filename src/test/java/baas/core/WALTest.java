@@ -0,0 +1,150 @@
+package baas.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALTest {
+    @TempDir
+    Path dir;
+
+    private File walFile() {
+        return dir.resolve("wal.log").toFile();
+    }
+
+    private WAL open() throws IOException {
+        return new WAL(walFile().getPath(), 5, 3);
+    }
+
+    private static void log(WAL wal, String id) throws IOException {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("operation", "insert");
+        entry.put("collection", "c");
+        entry.put("id", id);
+        entry.put("document", Map.of("n", id));
+        wal.log(entry);
+    }
+
+    private static List<Object> replayedIds(WAL wal) throws IOException {
+        List<Object> ids = new ArrayList<>();
+        wal.recover(entry -> ids.add(entry.get("id")));
+        return ids;
+    }
+
+    // Writes records "1".."count" and returns the file length after each one, after the header first
+    private List<Long> writeRecords(int count) throws IOException {
+        List<Long> ends = new ArrayList<>();
+        WAL wal = open();
+        try {
+            ends.add(walFile().length());
+            for (int i = 1; i <= count; i++) {
+                log(wal, Integer.toString(i));
+                ends.add(walFile().length());
+            }
+        } finally {
+            wal.close();
+        }
+        return ends;
+    }
+
+    @Test
+    void reopenedLogReplaysEveryRecordInOrder() throws IOException {
+        writeRecords(5);
+        WAL wal = open();
+        try {
+            assertEquals(List.of("1", "2", "3", "4", "5"), replayedIds(wal));
+            assertEquals(5, wal.currentLsn());
+        } finally {
+            wal.close();
+        }
+    }
+
+    @Test
+    void tornTailDropsOnlyTheLastRecord() throws IOException {
+        List<Long> ends = writeRecords(5);
+        try (RandomAccessFile file = new RandomAccessFile(walFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        WAL wal = open();
+        try {
+            assertEquals(ends.get(4), walFile().length(), "torn record is truncated on open");
+            assertEquals(List.of("1", "2", "3", "4"), replayedIds(wal));
+            assertEquals(4, wal.currentLsn());
+            log(wal, "6");
+        } finally {
+            wal.close();
+        }
+
+        // Writes after the truncation continue the log cleanly
+        wal = open();
+        try {
+            assertEquals(List.of("1", "2", "3", "4", "6"), replayedIds(wal));
+            assertEquals(5, wal.currentLsn());
+        } finally {
+            wal.close();
+        }
+    }
+
+    @Test
+    void checksumMismatchStopsReplayAtTheDamagedRecord() throws IOException {
+        List<Long> ends = writeRecords(5);
+        long damaged = ends.get(2) + WALFormat.RECORD_HEADER_SIZE + WALFormat.BODY_HEADER_SIZE + 1;
+        try (RandomAccessFile file = new RandomAccessFile(walFile(), "rw")) {
+            file.seek(damaged);
+            int b = file.read();
+            file.seek(damaged);
+            file.write(b ^ 0xFF);
+        }
+
+        WAL wal = open();
+        try {
+            assertEquals(List.of("1", "2"), replayedIds(wal));
+            assertEquals(2, wal.currentLsn());
+            assertEquals(ends.get(2), walFile().length(), "log is cut at the damaged record");
+        } finally {
+            wal.close();
+        }
+    }
+
+    @Test
+    void legacyJsonLogIsReplayedBeforeNewRecords() throws IOException {
+        Files.write(walFile().toPath(), List.of(
+                "{\"operation\":\"insert\",\"collection\":\"c\",\"id\":\"old1\",\"document\":{\"n\":1}}",
+                "",
+                "{\"operation\":\"insert\",\"collection\":\"c\",\"id\":\"old2\",\"document\":{\"n\":2}}"),
+                StandardCharsets.UTF_8);
+
+        WAL wal = open();
+        try {
+            assertTrue(WALFormat.isBinary(walFile()), "live segment is binary after the legacy log is moved aside");
+            log(wal, "new1");
+            log(wal, "new2");
+        } finally {
+            wal.close();
+        }
+
+        wal = open();
+        try {
+            assertEquals(List.of("old1", "old2", "new1", "new2"), replayedIds(wal));
+            // Legacy records carry no LSNs and predate every checkpoint
+            List<Object> afterCheckpoint = new ArrayList<>();
+            wal.recover(1, entry -> afterCheckpoint.add(entry.get("id")));
+            assertEquals(List.of("new2"), afterCheckpoint);
+        } finally {
+            wal.close();
+        }
+    }
+}
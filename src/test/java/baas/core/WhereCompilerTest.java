@@ -0,0 +1,51 @@
+package baas.core;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WhereCompilerTest {
+    private final WhereCompiler compiler = new WhereCompiler(16);
+
+    private boolean matches(String condition, String json) {
+        Map<String, Object> document = new JSONObject(json).toMap();
+        return compiler.compile(condition).matches(document);
+    }
+
+    @Test
+    void decimalLiteralsMatchStoredDecimals() {
+        String document = "{\"price\":0.1}";
+        assertTrue(matches("price = 0.1", document));
+        assertTrue(matches("price >= 0.1", document));
+        assertTrue(matches("price <= 0.1", document));
+        assertTrue(matches("price IN (0.1)", document));
+        assertTrue(matches("price BETWEEN 0.1 AND 1", document));
+        assertFalse(matches("price > 0.1", document));
+        assertFalse(matches("price < 0.1", document));
+        assertFalse(matches("price != 0.1", document));
+    }
+
+    @Test
+    void decimalLiteralsIgnoreScale() {
+        assertTrue(matches("price = 2.5", "{\"price\":2.50}"));
+        assertTrue(matches("price = 2.50", "{\"price\":2.5}"));
+        assertTrue(matches("price = 2.0", "{\"price\":2}"));
+    }
+
+    @Test
+    void decimalLiteralsMatchDoubles() {
+        Map<String, Object> document = Map.of("price", 0.1);
+        assertTrue(compiler.compile("price = 0.1").matches(document));
+        assertTrue(compiler.compile("price BETWEEN 0.1 AND 0.2").matches(document));
+    }
+
+    @Test
+    void integersBeyondLongMatchStoredIntegers() {
+        String document = "{\"id\":123456789012345678901234567890}";
+        assertTrue(matches("id = 123456789012345678901234567890", document));
+        assertFalse(matches("id = 123456789012345678901234567891", document));
+    }
+}